@@ -0,0 +1,75 @@
+package com.universal.storage;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class is a consistent hashing ring used to route the paths to the shards.
+ * Every node is placed several times within the ring, so adding a node only moves
+ * about 1/n of the paths.
+ */
+class ConsistentHashRing<T> {
+    private static final int VIRTUAL_NODES = 160;
+    private final TreeMap<Long, T> ring = new TreeMap<Long, T>();
+
+    /**
+     * This constructor builds an empty ring.
+     */
+    ConsistentHashRing() {
+    }
+
+    /**
+     * This constructor builds a copy of the passed ring.
+     * 
+     * @param source is the ring to be copied.
+     */
+    ConsistentHashRing(ConsistentHashRing<T> source) {
+        ring.putAll(source.ring);
+    }
+
+    /**
+     * This method adds a node to the ring.
+     * 
+     * @param name is the stable name of the node.
+     * @param node to be added.
+     */
+    void add(String name, T node) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(name + "#" + i), node);
+        }
+    }
+
+    /**
+     * This method returns the node that owns the passed key.
+     * 
+     * @param key in context.
+     * @returns the node or null if the ring is empty.
+     */
+    T get(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte [] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
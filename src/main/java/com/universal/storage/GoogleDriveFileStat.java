@@ -0,0 +1,57 @@
+package com.universal.storage;
+
+import java.util.Date;
+
+/**
+ * This class holds the metadata of a file within the storage.
+ * The metadata is retrieved without downloading the file.
+ */
+public class GoogleDriveFileStat {
+    private final String path;
+    private final String id;
+    private final long size;
+    private final String md5;
+    private final Date modifiedTime;
+
+    /**
+     * This constructor receives the metadata of the file.
+     *
+     * @param path is the file's path within the root.
+     * @param id is the Google Drive id, null if the file is still pending to be uploaded.
+     * @param size is the size in bytes.
+     * @param md5 is the md5 checksum of the content.
+     * @param modifiedTime is the last modification time.
+     */
+    public GoogleDriveFileStat(String path, String id, long size, String md5, Date modifiedTime) {
+        this.path = path;
+        this.id = id;
+        this.size = size;
+        this.md5 = md5;
+        this.modifiedTime = modifiedTime;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public Date getModifiedTime() {
+        return modifiedTime;
+    }
+
+    public String toString() {
+        return "GoogleDriveFileStat [path=" + path + ", id=" + id + ", size=" + size +
+                    ", md5=" + md5 + ", modifiedTime=" + modifiedTime + "]";
+    }
+}
@@ -0,0 +1,500 @@
+package com.universal.storage;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * This class is an HttpTransport built on the JDK HttpClient.  The requests to the same host are
+ * multiplexed over a single HTTP/2 connection, instead of opening a connection per concurrent request.
+ *
+ * The files and the contents that can be reopened are read directly by the HttpClient, the other
+ * contents up to BUFFER_SIZE are serialized at once, and the bigger ones are streamed through a pipe
+ * written by another thread, so they're never buffered in memory.  The response bodies are streamed.
+ *
+ * As with the default transport, the read timeout applies to every read of the response body:
+ * a download that receives nothing within the read timeout is cancelled.
+ */
+class JdkHttp2Transport extends HttpTransport {
+    private static final int CONNECT_TIMEOUT = 20000;
+    private static final int PIPE_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Headers managed by the HttpClient itself.
+     */
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(
+                Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+
+    /**
+     * Threads that write the request bodies into the pipes read by the HttpClient.
+     */
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "universal-storage-http2-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Thread that cancels the response bodies which didn't receive data within the read timeout.
+     */
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "universal-storage-http2-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    private final HttpClient client;
+
+    /**
+     * This constructor builds the HttpClient preferring HTTP/2.
+     */
+    JdkHttp2Transport() {
+        this.client = HttpClient.newBuilder().
+                    version(HttpClient.Version.HTTP_2).
+                    followRedirects(HttpClient.Redirect.NEVER).
+                    connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT)).build();
+    }
+
+    /**
+     * The HttpClient supports every method, so PATCH doesn't need the method override header.
+     */
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new Request(method, url);
+    }
+
+    /**
+     * This class is a request executed through the HttpClient.
+     */
+    private class Request extends LowLevelHttpRequest {
+        private final String method;
+        private final String url;
+        private final List<String []> headers = new ArrayList<String []>();
+        private int readTimeout;
+
+        Request(String method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        public void addHeader(String name, String value) {
+            headers.add(new String [] {name, value});
+        }
+
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        public LowLevelHttpResponse execute() throws IOException {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url));
+
+            for (String [] header : headers) {
+                if (!RESTRICTED_HEADERS.contains(header[0].toLowerCase())) {
+                    builder.header(header[0], header[1]);
+                }
+            }
+
+            if (getContentType() != null) {
+                builder.setHeader("Content-Type", getContentType());
+            }
+
+            if (getContentEncoding() != null) {
+                builder.setHeader("Content-Encoding", getContentEncoding());
+            }
+
+            final StreamingContent content = getStreamingContent();
+            if (content == null || getContentLength() == 0) {
+                /**
+                 * Without a body, the timeout of the HttpClient only covers the wait for the response.
+                 */
+                if (readTimeout > 0) {
+                    builder.timeout(Duration.ofMillis(readTimeout));
+                }
+
+                builder.method(method, HttpRequest.BodyPublishers.noBody());
+
+                try {
+                    return new Response(client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream()), readTimeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(e.getMessage());
+                }
+            }
+
+            SentPublisher body = new SentPublisher(publisher(content));
+            builder.method(method, body);
+
+            return new Response(await(client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofInputStream()), body), 
+                        readTimeout);
+        }
+
+        /**
+         * This method builds the publisher of the request body, avoiding the pipe and its writer thread
+         * whenever the content allows it.
+         */
+        private HttpRequest.BodyPublisher publisher(final StreamingContent content) throws IOException {
+            long length = getContentLength();
+
+            if (content instanceof FileContent) {
+                return HttpRequest.BodyPublishers.ofFile(((FileContent) content).getFile().toPath());
+            }
+
+            if (length > 0 && content instanceof AbstractInputStreamContent && 
+                        ((AbstractInputStreamContent) content).retrySupported()) {
+                return HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+                    public InputStream get() {
+                        try {
+                            return ((AbstractInputStreamContent) content).getInputStream();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }), length);
+            }
+
+            if (length > 0 && length <= BUFFER_SIZE) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+                content.writeTo(out);
+                return HttpRequest.BodyPublishers.ofByteArray(out.toByteArray());
+            }
+
+            HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+                public InputStream get() {
+                    return new BodyStream(content);
+                }
+            });
+
+            return length > 0 ? HttpRequest.BodyPublishers.fromPublisher(publisher, length) : publisher;
+        }
+
+        /**
+         * This method waits for the response of a request with a body.  The timeout of the HttpClient
+         * would include the upload of the body, so the read timeout starts when the body was sent.
+         */
+        private HttpResponse<InputStream> await(CompletableFuture<HttpResponse<InputStream>> future, SentPublisher body) 
+                    throws IOException {
+            try {
+                while (true) {
+                    if (readTimeout <= 0) {
+                        return future.get();
+                    }
+
+                    long sent = body.getSentAt();
+                    long wait = sent == 0 ? readTimeout : readTimeout - (System.currentTimeMillis() - sent);
+                    if (wait <= 0) {
+                        future.cancel(true);
+                        throw new HttpTimeoutException("The response wasn't received within " + readTimeout + "ms.");
+                    }
+
+                    try {
+                        return future.get(wait, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException ignore) {
+                        /**
+                         * The body may be still uploading, so check again.
+                         */
+                    }
+                }
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                while (cause.getCause() != null && !(cause instanceof IOException)) {
+                    cause = cause.getCause();
+                }
+
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+    }
+
+    /**
+     * This class is the pipe read by the HttpClient, a writer thread serializes the content into it.
+     * If the content fails, the failure is thrown to the HttpClient so the request fails instead of
+     * sending a truncated body.
+     */
+    private static class BodyStream extends PipedInputStream {
+        private volatile IOException failure;
+
+        BodyStream(final StreamingContent content) {
+            super(PIPE_SIZE);
+
+            final PipedOutputStream out;
+            try {
+                out = new PipedOutputStream(this);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+
+            WRITERS.execute(new Runnable() {
+                public void run() {
+                    try {
+                        content.writeTo(out);
+                    } catch (IOException e) {
+                        failure = e;
+                    } catch (RuntimeException e) {
+                        failure = new IOException(e.getMessage(), e);
+                    } finally {
+                        try {
+                            out.close();
+                        } catch (IOException ignore) {}
+                    }
+                }
+            });
+        }
+
+        public synchronized int read() throws IOException {
+            return check(super.read());
+        }
+
+        public synchronized int read(byte [] b, int off, int len) throws IOException {
+            return check(super.read(b, off, len));
+        }
+
+        private int check(int result) throws IOException {
+            if (result == -1 && failure != null) {
+                throw failure;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * This class is a body publisher which records when the whole body was published to the HttpClient.
+     */
+    private static class SentPublisher implements HttpRequest.BodyPublisher {
+        private final HttpRequest.BodyPublisher publisher;
+        private volatile long sentAt;
+
+        SentPublisher(HttpRequest.BodyPublisher publisher) {
+            this.publisher = publisher;
+        }
+
+        public long contentLength() {
+            return publisher.contentLength();
+        }
+
+        public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+            sentAt = 0;
+            publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscriber.onSubscribe(subscription);
+                }
+
+                public void onNext(ByteBuffer item) {
+                    subscriber.onNext(item);
+                }
+
+                public void onError(Throwable throwable) {
+                    subscriber.onError(throwable);
+                }
+
+                public void onComplete() {
+                    sentAt = System.currentTimeMillis();
+                    subscriber.onComplete();
+                }
+            });
+        }
+
+        /**
+         * This method returns when the whole body was published, 0 while it's being sent.
+         */
+        long getSentAt() {
+            return sentAt;
+        }
+    }
+
+    /**
+     * This class is the response body with a deadline for every read.  The HttpClient doesn't time out
+     * the reads of the body, so the watchdog closes the body when a read doesn't receive data within
+     * the read timeout, which cancels the exchange and wakes up the read.
+     */
+    private static class TimedBodyStream extends FilterInputStream {
+        private final int readTimeout;
+        private volatile boolean timedOut;
+
+        TimedBodyStream(InputStream in, int readTimeout) {
+            super(in);
+            this.readTimeout = readTimeout;
+        }
+
+        public int read() throws IOException {
+            ScheduledFuture<?> deadline = arm();
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw timedOut ? timeout() : e;
+            } finally {
+                disarm(deadline);
+            }
+        }
+
+        public int read(byte [] b, int off, int len) throws IOException {
+            ScheduledFuture<?> deadline = arm();
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                throw timedOut ? timeout() : e;
+            } finally {
+                disarm(deadline);
+            }
+        }
+
+        /**
+         * This method schedules the deadline of a read, only when the read may block.
+         */
+        private ScheduledFuture<?> arm() throws IOException {
+            if (timedOut) {
+                throw timeout();
+            }
+
+            if (readTimeout <= 0 || in.available() > 0) {
+                return null;
+            }
+
+            return WATCHDOG.schedule(new Runnable() {
+                public void run() {
+                    timedOut = true;
+                    try {
+                        in.close();
+                    } catch (IOException ignore) {}
+                }
+            }, readTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        private static void disarm(ScheduledFuture<?> deadline) {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+        }
+
+        private SocketTimeoutException timeout() {
+            return new SocketTimeoutException("No data was received within " + readTimeout + "ms.");
+        }
+    }
+
+    /**
+     * This class is a response whose body is read from the connection as it arrives.
+     */
+    private static class Response extends LowLevelHttpResponse {
+        private final HttpResponse<InputStream> response;
+        private final InputStream content;
+        private final List<String []> headers = new ArrayList<String []>();
+
+        Response(HttpResponse<InputStream> response, int readTimeout) {
+            this.response = response;
+            this.content = new TimedBodyStream(response.body(), readTimeout);
+
+            for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+                if (header.getKey().startsWith(":")) {
+                    /**
+                     * HTTP/2 pseudo headers.
+                     */
+                    continue;
+                }
+
+                for (String value : header.getValue()) {
+                    headers.add(new String [] {header.getKey(), value});
+                }
+            }
+        }
+
+        public InputStream getContent() {
+            return content;
+        }
+
+        public String getContentEncoding() {
+            return response.headers().firstValue("content-encoding").orElse(null);
+        }
+
+        public long getContentLength() {
+            return response.headers().firstValueAsLong("content-length").orElse(-1);
+        }
+
+        public String getContentType() {
+            return response.headers().firstValue("content-type").orElse(null);
+        }
+
+        public String getStatusLine() {
+            return (response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ") + response.statusCode();
+        }
+
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        public String getReasonPhrase() {
+            return null;
+        }
+
+        public int getHeaderCount() {
+            return headers.size();
+        }
+
+        public String getHeaderName(int index) {
+            return headers.get(index)[0];
+        }
+
+        public String getHeaderValue(int index) {
+            return headers.get(index)[1];
+        }
+
+        public void disconnect() throws IOException {
+            content.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.universal.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * This class limits the rate of requests sent by a Drive client.
+ * The requests are spaced evenly according to the configured requests per second.
+ */
+class RequestRateLimiter {
+    private final long interval;
+    private long next;
+
+    /**
+     * This constructor receives the max requests per second.
+     * 
+     * @param requestsPerSecond is the max requests per second.
+     */
+    RequestRateLimiter(double requestsPerSecond) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("The requests per second should be greater than zero.");
+        }
+
+        this.interval = (long) (1000000000L / requestsPerSecond);
+        this.next = System.nanoTime();
+    }
+
+    /**
+     * This method blocks until the next request is allowed.
+     */
+    void acquire() throws IOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long slot = Math.max(now, next);
+            next = slot + interval;
+            wait = slot - now;
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,1050 @@
+package com.universal.storage;
+
+import com.universal.error.UniversalIOException;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+import com.google.api.client.http.FileContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.FileList;
+
+/**
+ * This class packs small files into large segment objects stored within the folder .packs of the root.
+ * A compact index (gzipped) maps every logical path to its segment, offset and length, so a packed file
+ * is read with a ranged download of its segment.  The index is a base object plus a delta object for
+ * every flush, the base is rewritten when the deltas outgrow it.
+ *
+ * The small files are appended to a local open segment (synced on every write) which is uploaded when
+ * it's full or by the background flusher once it's old enough.  The background compactor rewrites the
+ * segments whose live bytes dropped below the half of their size, merges the undersized segments and
+ * deletes the rewritten ones.
+ *
+ * Only one node can pack files within a root.  The node holds a lease object within the folder .packs,
+ * renewed by the background thread, and another node can't take it until it expires.
+ */
+class SegmentPacker {
+    static final String PACKS_FOLDER = ".packs";
+    private static final String INDEX_NAME = "index";
+    private static final String DELTA_PREFIX = "index.";
+    private static final String LOCK_NAME = "lock";
+    private static final String OPEN_SEGMENT = "open.seg";
+    private static final String OPEN_ENTRIES = "open.idx";
+    private static final String COMPACT_SEGMENT = "compact.seg";
+    private static final String COMPACT_TARGET = "compact.new";
+    private static final String OWNER = "owner";
+    private static final String ENCODING = "UTF-8";
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+    private static final long FLUSH_INTERVAL = 5000;
+    private static final long SEAL_AGE = 2 * 60 * 1000;
+    private static final long COMPACT_INTERVAL = 10 * 60 * 1000;
+    private static final double COMPACT_RATIO = 0.5;
+    private static final double MERGE_RATIO = 0.5;
+    private static final long LOCK_LEASE = 2 * 60 * 1000;
+    private static final long HEARTBEAT_INTERVAL = 30 * 1000;
+    private static final long MIN_DELTA_SIZE = 64 * 1024;
+    private static final int MAX_DELTAS = 1000;
+
+    private final UniversalGoogleDriveStorage storage;
+    private final Drive service;
+    private final String root;
+    private final File local;
+    private final long threshold;
+    private final long segmentSize;
+
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private final Map<String, Segment> segments = new HashMap<String, Segment>();
+    private final Map<String, Location> open = new LinkedHashMap<String, Location>();
+    private final Map<String, Location> changedKeys = new LinkedHashMap<String, Location>();
+    private final Set<String> changedSegments = new LinkedHashSet<String>();
+    private final List<String> deltaIds = new ArrayList<String>();
+    private final Object compactLock = new Object();
+    private final String owner;
+    private String folderId;
+    private String indexId;
+    private String lockId;
+    private volatile boolean lost;
+    private volatile long renewed;
+    private long deltaSeq;
+    private long baseSize;
+    private long deltaSize;
+    private long counter;
+    private long openedAt;
+
+    /**
+     * This class is the location of a packed file.  The segment is null while the file is within
+     * the open segment.
+     */
+    private static class Location {
+        private final String segment;
+        private final long offset;
+        private final long length;
+        private final String md5;
+        private final long modified;
+
+        Location(String segment, long offset, long length, String md5, long modified) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.md5 = md5;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * This class is a sealed segment within Google Drive.
+     */
+    private static class Segment {
+        private final String name;
+        private final String id;
+        private final long size;
+        private long live;
+
+        Segment(String name, String id, long size, long live) {
+            this.name = name;
+            this.id = id;
+            this.size = size;
+            this.live = live;
+        }
+    }
+
+    /**
+     * This constructor takes the lock, recovers the open segment and loads the index.
+     *
+     * @param storage is the owner storage, its listeners will be triggered.
+     * @param service is the Drive client.
+     * @param root is the name of the root folder.
+     * @param local is the local folder for the open segment.
+     * @param threshold is the max size of the files to be packed.
+     * @param segmentSize is the size when an open segment gets sealed.
+     */
+    SegmentPacker(UniversalGoogleDriveStorage storage, Drive service, String root, File local,
+                long threshold, long segmentSize) throws IOException {
+        this.storage = storage;
+        this.service = service;
+        this.root = root;
+        this.local = local;
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+
+        FileUtils.forceMkdir(local);
+        FileUtils.deleteQuietly(new File(local, COMPACT_SEGMENT));
+        FileUtils.deleteQuietly(new File(local, COMPACT_TARGET));
+
+        /**
+         * The owner of the lock is kept within the local folder, so a restarted node takes its lock back.
+         */
+        File ownerFile = new File(local, OWNER);
+        if (!ownerFile.exists()) {
+            FileUtils.writeStringToFile(ownerFile, UUID.randomUUID().toString(), ENCODING);
+        }
+        this.owner = FileUtils.readFileToString(ownerFile, ENCODING).trim();
+
+        acquireLock();
+        loadIndex();
+        recoverOpenSegment();
+    }
+
+    /**
+     * This method starts the background flusher, compactor and lock renewal.
+     */
+    void start() {
+        Thread worker = new Thread(new Runnable() {
+            public void run() {
+                long lastCompaction = System.currentTimeMillis();
+                while (true) {
+                    try {
+                        Thread.sleep(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    try {
+                        renewIfDue();
+                        flushIfDue();
+
+                        if (System.currentTimeMillis() - lastCompaction >= COMPACT_INTERVAL) {
+                            compact();
+                            lastCompaction = System.currentTimeMillis();
+                        }
+                    } catch (Exception e) {
+                        storage.triggerOnErrorListeners(new UniversalIOException(e.getMessage()));
+                    }
+                }
+            }
+        }, "universal-storage-packer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * This method checks if a file is small enough to be packed.
+     *
+     * @param file in context.
+     */
+    boolean accepts(File file) {
+        return file.length() <= threshold;
+    }
+
+    /**
+     * This method appends a file to the open segment.  The segment is sealed when it's full.
+     *
+     * @param file to be packed.
+     * @param key is the logical path of the file.
+     */
+    synchronized void pack(File file, String key) throws IOException {
+        checkLock();
+
+        byte [] content = FileUtils.readFileToByteArray(file);
+        append(key, content, UniversalGoogleDriveStorage.md5(new ByteArrayInputStream(content)), System.currentTimeMillis());
+
+        if (new File(local, OPEN_SEGMENT).length() >= segmentSize) {
+            seal();
+        }
+    }
+
+    /**
+     * This method removes a packed file.  Its bytes will be reclaimed by the compactor.
+     *
+     * @param key is the logical path of the file.
+     * @returns true if the file was packed.
+     */
+    synchronized boolean remove(String key) throws IOException {
+        boolean removed = false;
+        if (open.remove(key) != null) {
+            appendLine(new File(local, OPEN_ENTRIES), "R\t" + URLEncoder.encode(key, ENCODING));
+            removed = true;
+        }
+
+        Location location = index.remove(key);
+        if (location != null) {
+            segments.get(location.segment).live -= location.length;
+            changedSegments.add(location.segment);
+            changedKeys.put(key, null);
+            removed = true;
+        }
+
+        return removed;
+    }
+
+    /**
+     * This method removes every packed file within a folder.
+     *
+     * @param prefix is the folder's path ending with a slash.
+     * @returns true if at least one file was packed.
+     */
+    synchronized boolean removeAll(String prefix) throws IOException {
+        boolean removed = false;
+        for (String key : keys()) {
+            if (key.startsWith(prefix)) {
+                removed |= remove(key);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * This method checks if there are packed files within a folder.
+     *
+     * @param prefix is the folder's path ending with a slash.
+     */
+    synchronized boolean containsAny(String prefix) {
+        for (String key : keys()) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * This method checks if a file is packed.
+     *
+     * @param key is the logical path of the file.
+     */
+    synchronized boolean contains(String key) {
+        return open.containsKey(key) || index.containsKey(key);
+    }
+
+    /**
+     * This method opens a packed file, the sealed files are read using a ranged download.
+     *
+     * @param key is the logical path of the file.
+     * @returns an InputStream or null if the file isn't packed.
+     */
+    synchronized InputStream open(String key) throws IOException {
+        Location location = open.get(key);
+        if (location != null) {
+            return new ByteArrayInputStream(read(new File(local, OPEN_SEGMENT), location.offset, location.length));
+        }
+
+        location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+
+        if (location.length == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        Drive.Files.Get get = service.files().get(segments.get(location.segment).id);
+        get.getRequestHeaders().setRange("bytes=" + location.offset + "-" + (location.offset + location.length - 1));
+
+        return get.executeMediaAsInputStream();
+    }
+
+    /**
+     * This method retrieves the metadata of a packed file.
+     *
+     * @param key is the logical path of the file.
+     * @param path is the path to be reported.
+     * @returns the metadata or null if the file isn't packed.
+     */
+    synchronized GoogleDriveFileStat stat(String key, String path) {
+        Location location = open.get(key);
+        if (location == null) {
+            location = index.get(key);
+        }
+
+        if (location == null) {
+            return null;
+        }
+
+        return new GoogleDriveFileStat(path, location.segment == null ? null : segments.get(location.segment).id,
+                    location.length, location.md5, new Date(location.modified));
+    }
+
+    /**
+     * This method returns the logical paths of every packed file.
+     */
+    synchronized Set<String> keys() {
+        Set<String> keys = new TreeSet<String>(index.keySet());
+        keys.addAll(open.keySet());
+
+        return keys;
+    }
+
+    /**
+     * This method seals the open segment and persists the index if it was modified.
+     */
+    synchronized void flush() throws IOException {
+        seal();
+        persistIndex();
+    }
+
+    /**
+     * This method seals the open segment if it's older than SEAL_AGE, so a low write rate doesn't
+     * upload a tiny segment on every flush, and persists the index if it was modified.
+     */
+    synchronized void flushIfDue() throws IOException {
+        if (openedAt > 0 && System.currentTimeMillis() - openedAt >= SEAL_AGE) {
+            seal();
+        }
+
+        persistIndex();
+    }
+
+    /**
+     * This method forgets every packed file, used after wiping the root.
+     */
+    synchronized void reset() {
+        index.clear();
+        segments.clear();
+        open.clear();
+        changedKeys.clear();
+        changedSegments.clear();
+        deltaIds.clear();
+        folderId = null;
+        indexId = null;
+        lockId = null;
+        deltaSeq = 0;
+        baseSize = 0;
+        deltaSize = 0;
+        openedAt = 0;
+
+        FileUtils.deleteQuietly(new File(local, OPEN_SEGMENT));
+        FileUtils.deleteQuietly(new File(local, OPEN_ENTRIES));
+    }
+
+    /**
+     * This method rewrites the segments with too many dead bytes and merges the undersized ones.  The
+     * segments are downloaded and their live files uploaded as a new segment without holding the lock,
+     * the lock is only taken to point the index to the new segment.  The files removed or replaced
+     * meanwhile are kept as they are.
+     */
+    void compact() throws IOException {
+        synchronized (compactLock) {
+            flush();
+
+            List<List<Segment>> groups = new ArrayList<List<Segment>>();
+            synchronized (this) {
+                List<Segment> group = new ArrayList<Segment>();
+                long groupLive = 0;
+                for (Segment segment : segments.values()) {
+                    if (segment.live >= segment.size * COMPACT_RATIO && segment.size >= segmentSize * MERGE_RATIO) {
+                        continue;
+                    }
+
+                    /**
+                     * The live files of a group fit within a new segment.
+                     */
+                    if (!group.isEmpty() && groupLive + segment.live > segmentSize) {
+                        groups.add(group);
+                        group = new ArrayList<Segment>();
+                        groupLive = 0;
+                    }
+
+                    group.add(segment);
+                    groupLive += segment.live;
+                }
+
+                if (!group.isEmpty()) {
+                    groups.add(group);
+                }
+            }
+
+            for (List<Segment> group : groups) {
+                if (group.size() == 1 && group.get(0).live >= group.get(0).size * COMPACT_RATIO) {
+                    /**
+                     * An undersized segment alone waits for others to be merged with.
+                     */
+                    continue;
+                }
+
+                /**
+                 * A long compaction mustn't let the lock expire.
+                 */
+                renewIfDue();
+                compact(group);
+            }
+        }
+    }
+
+    private void compact(List<Segment> group) throws IOException {
+        Set<String> names = new HashSet<String>();
+        for (Segment segment : group) {
+            names.add(segment.name);
+        }
+
+        Map<String, Location> live = new LinkedHashMap<String, Location>();
+        synchronized (this) {
+            checkLock();
+
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                if (names.contains(entry.getValue().segment)) {
+                    live.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        String name = null;
+        String id = null;
+        long size = 0;
+        Map<String, Location> moved = new LinkedHashMap<String, Location>();
+        if (!live.isEmpty()) {
+            File copy = new File(local, COMPACT_SEGMENT);
+            File target = new File(local, COMPACT_TARGET);
+            try {
+                name = newSegmentName();
+                OutputStream out = new FileOutputStream(target);
+                try {
+                    for (Segment segment : group) {
+                        OutputStream segmentOut = new FileOutputStream(copy);
+                        try {
+                            service.files().get(segment.id).executeMediaAndDownloadTo(segmentOut);
+                        } finally {
+                            segmentOut.close();
+                        }
+
+                        for (Map.Entry<String, Location> entry : live.entrySet()) {
+                            Location location = entry.getValue();
+                            if (segment.name.equals(location.segment)) {
+                                moved.put(entry.getKey(), new Location(name, size, location.length, location.md5, location.modified));
+                                out.write(read(copy, location.offset, location.length));
+                                size += location.length;
+                            }
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+
+                id = upload(name, target).getId();
+            } finally {
+                FileUtils.deleteQuietly(copy);
+                FileUtils.deleteQuietly(target);
+            }
+        }
+
+        synchronized (this) {
+            if (name != null) {
+                long liveBytes = 0;
+                for (Map.Entry<String, Location> entry : moved.entrySet()) {
+                    if (index.get(entry.getKey()) == live.get(entry.getKey())) {
+                        index.put(entry.getKey(), entry.getValue());
+                        changedKeys.put(entry.getKey(), entry.getValue());
+                        liveBytes += entry.getValue().length;
+                    }
+                }
+
+                segments.put(name, new Segment(name, id, size, liveBytes));
+                changedSegments.add(name);
+            }
+
+            for (Segment segment : group) {
+                segments.remove(segment.name);
+                changedSegments.add(segment.name);
+            }
+
+            persistIndex();
+        }
+
+        for (Segment segment : group) {
+            service.files().delete(segment.id).execute();
+        }
+    }
+
+    private void append(String key, byte [] content, String md5, long modified) throws IOException {
+        File segment = new File(local, OPEN_SEGMENT);
+        long offset = segment.length();
+
+        FileOutputStream out = new FileOutputStream(segment, true);
+        try {
+            out.write(content);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        Location location = new Location(null, offset, content.length, md5, modified);
+        appendLine(new File(local, OPEN_ENTRIES), "F\t" + encode(key, location));
+
+        open.put(key, location);
+        if (openedAt == 0) {
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * This method uploads the open segment, points the index to it and fires the onFileStored event
+     * for the sealed files.
+     */
+    private void seal() throws IOException {
+        if (open.isEmpty()) {
+            return;
+        }
+
+        checkLock();
+
+        File segmentFile = new File(local, OPEN_SEGMENT);
+        String name = newSegmentName();
+        com.google.api.services.drive.model.File newFile = upload(name, segmentFile);
+
+        long live = 0;
+        for (Location location : open.values()) {
+            live += location.length;
+        }
+
+        segments.put(name, new Segment(name, newFile.getId(), segmentFile.length(), live));
+        changedSegments.add(name);
+
+        Map<String, Location> sealed = new LinkedHashMap<String, Location>(open);
+        for (Map.Entry<String, Location> entry : sealed.entrySet()) {
+            Location location = new Location(name, entry.getValue().offset, entry.getValue().length,
+                        entry.getValue().md5, entry.getValue().modified);
+            Location previous = index.put(entry.getKey(), location);
+            changedKeys.put(entry.getKey(), location);
+            if (previous != null) {
+                segments.get(previous.segment).live -= previous.length;
+                changedSegments.add(previous.segment);
+            }
+        }
+
+        persistIndex();
+
+        open.clear();
+        openedAt = 0;
+        FileUtils.deleteQuietly(segmentFile);
+        FileUtils.deleteQuietly(new File(local, OPEN_ENTRIES));
+
+        for (String key : sealed.keySet()) {
+            int slash = key.lastIndexOf("/");
+            storage.triggerOnFileStoredListeners(new UniversalStorageData(key.substring(slash + 1),
+                        newFile.getWebViewLink(),
+                        newFile.getId(),
+                        root + (slash > -1 ? ("/" + key.substring(0, slash)) : "")));
+        }
+    }
+
+    private String newSegmentName() {
+        return "segment-" + System.currentTimeMillis() + "-" + (++counter);
+    }
+
+    /**
+     * This method uploads a segment file within the folder .packs.
+     */
+    private com.google.api.services.drive.model.File upload(String name, File segmentFile) throws IOException {
+        com.google.api.services.drive.model.File fileMetadata = new com.google.api.services.drive.model.File();
+        fileMetadata.setName(name);
+        fileMetadata.setParents(Arrays.asList(folderId()));
+
+        Drive.Files.Create create = service.files().create(fileMetadata, new FileContent("application/octet-stream", segmentFile));
+        create.getMediaHttpUploader().setDirectUploadEnabled(true);
+
+        return create.execute();
+    }
+
+    /**
+     * This method persists the changes of the index.  The changes are uploaded as a delta object, unless
+     * the deltas outgrew the base object, then the base is rewritten and the deltas are deleted.
+     */
+    private void persistIndex() throws IOException {
+        if (changedKeys.isEmpty() && changedSegments.isEmpty()) {
+            return;
+        }
+
+        checkLock();
+
+        if (indexId == null || deltaSize >= Math.max(baseSize, MIN_DELTA_SIZE) || deltaIds.size() >= MAX_DELTAS) {
+            persistBase();
+        } else {
+            persistDelta();
+        }
+
+        changedKeys.clear();
+        changedSegments.clear();
+    }
+
+    /**
+     * This method uploads the changes since the last persist as the next delta object.
+     */
+    private void persistDelta() throws IOException {
+        File deltaFile = new File(local, DELTA_PREFIX + (deltaSeq + 1));
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(deltaFile));
+        try {
+            for (String name : changedSegments) {
+                Segment segment = segments.get(name);
+                out.write((segment == null ? "T\t" + URLEncoder.encode(name, ENCODING) + "\n" : encode(segment)).getBytes(ENCODING));
+            }
+
+            for (Map.Entry<String, Location> entry : changedKeys.entrySet()) {
+                out.write((entry.getValue() == null ? "R\t" + URLEncoder.encode(entry.getKey(), ENCODING) :
+                            "F\t" + encode(entry.getKey(), entry.getValue())).getBytes(ENCODING));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+
+        try {
+            com.google.api.services.drive.model.File fileMetadata = new com.google.api.services.drive.model.File();
+            fileMetadata.setName(deltaFile.getName());
+            fileMetadata.setParents(Arrays.asList(folderId()));
+
+            Drive.Files.Create create = service.files().create(fileMetadata, new FileContent("application/gzip", deltaFile));
+            create.getMediaHttpUploader().setDirectUploadEnabled(true);
+
+            deltaIds.add(create.execute().getId());
+            deltaSize += deltaFile.length();
+            deltaSeq++;
+        } finally {
+            FileUtils.deleteQuietly(deltaFile);
+        }
+    }
+
+    /**
+     * This method uploads the whole index as the base object and deletes the deltas it includes.
+     */
+    private void persistBase() throws IOException {
+        File indexFile = new File(local, INDEX_NAME);
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(indexFile));
+        try {
+            out.write(("Q\t" + deltaSeq + "\n").getBytes(ENCODING));
+
+            for (Segment segment : segments.values()) {
+                out.write(encode(segment).getBytes(ENCODING));
+            }
+
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                out.write(("F\t" + encode(entry.getKey(), entry.getValue()) + "\n").getBytes(ENCODING));
+            }
+        } finally {
+            out.close();
+        }
+
+        try {
+            FileContent content = new FileContent("application/gzip", indexFile);
+            if (indexId == null) {
+                com.google.api.services.drive.model.File fileMetadata = new com.google.api.services.drive.model.File();
+                fileMetadata.setName(INDEX_NAME);
+                fileMetadata.setParents(Arrays.asList(folderId()));
+
+                Drive.Files.Create create = service.files().create(fileMetadata, content);
+                create.getMediaHttpUploader().setDirectUploadEnabled(true);
+
+                indexId = create.execute().getId();
+            } else {
+                Drive.Files.Update update = service.files().update(indexId, new com.google.api.services.drive.model.File(), content);
+                update.getMediaHttpUploader().setDirectUploadEnabled(true);
+                update.execute();
+            }
+
+            baseSize = indexFile.length();
+        } finally {
+            FileUtils.deleteQuietly(indexFile);
+        }
+
+        /**
+         * The deltas left by a failure are skipped on load because the base records their sequence.
+         */
+        for (String id : deltaIds) {
+            try {
+                service.files().delete(id).execute();
+            } catch (IOException ignore) {}
+        }
+
+        deltaIds.clear();
+        deltaSize = 0;
+    }
+
+    /**
+     * This method loads the base index object and applies its deltas in order.
+     */
+    private void loadIndex() throws IOException {
+        String folder = folderId();
+
+        List<com.google.api.services.drive.model.File> files = service.files().list().setQ("'" + folder +
+                    "' in parents and name = '" + INDEX_NAME + "' and trashed = false").execute().getFiles();
+        if (!files.isEmpty()) {
+            indexId = files.get(0).getId();
+            deltaSeq = readIndex(indexId);
+            baseSize = files.get(0).getSize() == null ? 0 : files.get(0).getSize();
+        }
+
+        long baseSeq = deltaSeq;
+        Map<Long, com.google.api.services.drive.model.File> deltas = new TreeMap<Long, com.google.api.services.drive.model.File>();
+        String pageToken = null;
+        do {
+            FileList page = service.files().list().setQ("'" + folder + "' in parents and name contains '" + DELTA_PREFIX +
+                        "' and trashed = false").setFields("nextPageToken, files(id, name, size)").
+                            setPageToken(pageToken).execute();
+
+            for (com.google.api.services.drive.model.File f : page.getFiles()) {
+                if (f.getName().startsWith(DELTA_PREFIX)) {
+                    try {
+                        deltas.put(Long.parseLong(f.getName().substring(DELTA_PREFIX.length())), f);
+                    } catch (NumberFormatException ignore) {}
+                }
+            }
+
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+
+        for (Map.Entry<Long, com.google.api.services.drive.model.File> delta : deltas.entrySet()) {
+            if (delta.getKey() <= baseSeq) {
+                /**
+                 * Already within the base, the base was rewritten before the delta could be deleted.
+                 */
+                service.files().delete(delta.getValue().getId()).execute();
+                continue;
+            }
+
+            readIndex(delta.getValue().getId());
+            deltaIds.add(delta.getValue().getId());
+            deltaSize += delta.getValue().getSize() == null ? 0 : delta.getValue().getSize();
+            deltaSeq = delta.getKey();
+        }
+    }
+
+    /**
+     * This method applies the records of an index object.
+     *
+     * @returns the sequence of the last delta included within a base object, 0 otherwise.
+     */
+    private long readIndex(String id) throws IOException {
+        long seq = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(service.files().get(id).executeMediaAsInputStream()), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String [] record = line.split("\t", -1);
+                if ("Q".equals(record[0])) {
+                    seq = Long.parseLong(record[1]);
+                } else if ("S".equals(record[0])) {
+                    String name = URLDecoder.decode(record[1], ENCODING);
+                    segments.put(name, new Segment(name, record[2], Long.parseLong(record[3]), Long.parseLong(record[4])));
+                } else if ("T".equals(record[0])) {
+                    segments.remove(URLDecoder.decode(record[1], ENCODING));
+                } else if ("F".equals(record[0])) {
+                    index.put(URLDecoder.decode(record[1], ENCODING), decode(record));
+                } else if ("R".equals(record[0])) {
+                    index.remove(URLDecoder.decode(record[1], ENCODING));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return seq;
+    }
+
+    /**
+     * This method takes the lock object of the folder .packs.  The lock is taken if it doesn't exist or
+     * its lease expired, otherwise another node is packing files within this root.
+     */
+    private void acquireLock() throws IOException {
+        List<com.google.api.services.drive.model.File> locks = listLocks();
+        for (com.google.api.services.drive.model.File lock : locks) {
+            if (isHeldByOther(lock)) {
+                throw new IOException("The packing mode is being used by another node within " + root + 
+                            ", only one node can pack files within a root.");
+            }
+        }
+
+        if (locks.isEmpty()) {
+            createLock();
+        } else {
+            lockId = locks.get(0).getId();
+            renew();
+        }
+
+        /**
+         * Two nodes may have taken the lock at the same time, the oldest lock object wins.
+         */
+        locks = listLocks();
+        if (locks.isEmpty() || !lockId.equals(locks.get(0).getId()) || isHeldByOther(locks.get(0))) {
+            if (locks.size() > 1 && !lockId.equals(locks.get(0).getId())) {
+                service.files().delete(lockId).execute();
+            }
+
+            lockId = null;
+            throw new IOException("The packing mode is being used by another node within " + root + 
+                        ", only one node can pack files within a root.");
+        }
+    }
+
+    private void renewIfDue() throws IOException {
+        if (System.currentTimeMillis() - renewed >= HEARTBEAT_INTERVAL) {
+            heartbeat();
+        }
+    }
+
+    /**
+     * This method renews the lease of the lock.  If another node took the lock, this packer stops
+     * writing and every pack fails.
+     */
+    private void heartbeat() throws IOException {
+        if (lost) {
+            return;
+        }
+
+        List<com.google.api.services.drive.model.File> locks = listLocks();
+        for (com.google.api.services.drive.model.File lock : locks) {
+            if (isHeldByOther(lock)) {
+                lost = true;
+                throw new IOException("The lock of the packing mode within " + root + " was taken by another node.");
+            }
+        }
+
+        synchronized (this) {
+            if (locks.isEmpty()) {
+                /**
+                 * The root was wiped.
+                 */
+                createLock();
+            } else {
+                lockId = locks.get(0).getId();
+                renew();
+            }
+        }
+    }
+
+    private void createLock() throws IOException {
+        com.google.api.services.drive.model.File fileMetadata = new com.google.api.services.drive.model.File();
+        fileMetadata.setName(LOCK_NAME);
+        fileMetadata.setParents(Arrays.asList(folderId()));
+        fileMetadata.setAppProperties(lease());
+
+        lockId = service.files().create(fileMetadata).execute().getId();
+        renewed = System.currentTimeMillis();
+    }
+
+    private void renew() throws IOException {
+        com.google.api.services.drive.model.File fileMetadata = new com.google.api.services.drive.model.File();
+        fileMetadata.setAppProperties(lease());
+
+        service.files().update(lockId, fileMetadata).execute();
+        renewed = System.currentTimeMillis();
+    }
+
+    private Map<String, String> lease() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("owner", owner);
+        properties.put("heartbeat", String.valueOf(System.currentTimeMillis()));
+
+        return properties;
+    }
+
+    private List<com.google.api.services.drive.model.File> listLocks() throws IOException {
+        return service.files().list().setQ("'" + folderId() + "' in parents and name = '" + LOCK_NAME + 
+                    "' and trashed = false").setOrderBy("createdTime").setFields("files(id, appProperties)").
+                        execute().getFiles();
+    }
+
+    private boolean isHeldByOther(com.google.api.services.drive.model.File lock) {
+        Map<String, String> properties = lock.getAppProperties();
+        if (properties == null || owner.equals(properties.get("owner"))) {
+            return false;
+        }
+
+        try {
+            return System.currentTimeMillis() - Long.parseLong(properties.get("heartbeat")) < LOCK_LEASE;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void checkLock() throws IOException {
+        if (lost) {
+            throw new IOException("The lock of the packing mode within " + root + " was taken by another node.");
+        }
+    }
+
+    /**
+     * This method recovers the files appended to the open segment before a crash or a restart.
+     * They will be uploaded by the background flusher.
+     */
+    private void recoverOpenSegment() throws IOException {
+        File entries = new File(local, OPEN_ENTRIES);
+        if (!entries.exists()) {
+            FileUtils.deleteQuietly(new File(local, OPEN_SEGMENT));
+            return;
+        }
+
+        long size = new File(local, OPEN_SEGMENT).length();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(entries), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String [] record = line.split("\t", -1);
+                try {
+                    if ("F".equals(record[0])) {
+                        Location location = decode(record);
+                        if (location.offset + location.length <= size) {
+                            open.put(URLDecoder.decode(record[1], ENCODING), location);
+                        }
+                    } else if ("R".equals(record[0])) {
+                        open.remove(URLDecoder.decode(record[1], ENCODING));
+                    }
+                } catch (RuntimeException ignore) {}
+            }
+        } finally {
+            reader.close();
+        }
+
+        /**
+         * The files were appended before the last change of the open segment at least.
+         */
+        if (!open.isEmpty()) {
+            openedAt = new File(local, OPEN_SEGMENT).lastModified();
+        }
+    }
+
+    /**
+     * This method resolves the folder .packs within the root, the folder is created if it doesn't exist.
+     */
+    private String folderId() throws IOException {
+        if (folderId != null) {
+            return folderId;
+        }
+
+        List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + root +
+                    "' and mimeType = '" + FOLDER_MIME_TYPE + "' and trashed = false").execute().getFiles();
+        if (files.isEmpty()) {
+            throw new IOException(root + " doesn't exist as a root storage.");
+        }
+
+        String rootId = files.get(0).getId();
+        files = service.files().list().setQ("'" + rootId + "' in parents and name = '" + PACKS_FOLDER +
+                    "' and mimeType = '" + FOLDER_MIME_TYPE + "' and trashed = false").execute().getFiles();
+
+        if (!files.isEmpty()) {
+            folderId = files.get(0).getId();
+        } else {
+            com.google.api.services.drive.model.File newFolder = new com.google.api.services.drive.model.File();
+            newFolder.setName(PACKS_FOLDER);
+            newFolder.setMimeType(FOLDER_MIME_TYPE);
+            newFolder.setParents(Arrays.asList(rootId));
+
+            folderId = service.files().create(newFolder).execute().getId();
+        }
+
+        return folderId;
+    }
+
+    private static String encode(Segment segment) throws IOException {
+        return "S\t" + URLEncoder.encode(segment.name, ENCODING) + "\t" + segment.id + "\t" +
+                    segment.size + "\t" + segment.live + "\n";
+    }
+
+    private static String encode(String key, Location location) throws IOException {
+        return URLEncoder.encode(key, ENCODING) + "\t" +
+                    (location.segment == null ? "" : URLEncoder.encode(location.segment, ENCODING)) + "\t" +
+                    location.offset + "\t" + location.length + "\t" + location.md5 + "\t" + location.modified;
+    }
+
+    private static Location decode(String [] record) throws IOException {
+        return new Location("".equals(record[2]) ? null : URLDecoder.decode(record[2], ENCODING),
+                    Long.parseLong(record[3]), Long.parseLong(record[4]), record[5], Long.parseLong(record[6]));
+    }
+
+    private static void appendLine(File file, String line) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write((line + "\n").getBytes(ENCODING));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte [] read(File file, long offset, long length) throws IOException {
+        byte [] content = new byte[(int) length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(content);
+        } finally {
+            raf.close();
+        }
+
+        return content;
+    }
+}
@@ -0,0 +1,550 @@
+package com.universal.storage;
+
+import com.universal.util.PathValidator;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class is the implementation of a storage that spreads the files over several Google Drive accounts.
+ * Every account (shard) is configured with its own settings and has its own credential, Drive client and
+ * rate limiter, so the request-rate and upload quotas grow with the amount of accounts.
+ *
+ * Every file is routed to a shard using consistent hashing over its path within the root. The folders
+ * are created within every shard, so the folder events are fired once per shard.
+ *
+ * A file may live within a shard that doesn't own it anymore while a rebalance is running, or when the
+ * process was restarted before the rebalance completed.  The amount of shards of the last completed
+ * rebalance is recorded within the root folder of the first shard, so a pending rebalance is detected
+ * after a restart.  While a rebalance is pending, the reads that miss within the owner fall back to the
+ * other shards, and the removals are applied to every shard that has the file.  Otherwise only the owner
+ * is used.
+ */
+public class UniversalGoogleDriveShardedStorage extends UniversalStorage {
+    private final List<UniversalGoogleDriveStorage> shards = new CopyOnWriteArrayList<UniversalGoogleDriveStorage>();
+    private volatile ConsistentHashRing<UniversalGoogleDriveStorage> ring = new ConsistentHashRing<UniversalGoogleDriveStorage>();
+    private final Object lock = new Object();
+    private final Set<String> busyKeys = new HashSet<String>();
+    private volatile boolean rebalancing;
+
+    /**
+     * Application property of the first shard's root with the amount of shards of the last completed rebalance.
+     */
+    static final String BALANCED_PROPERTY = "universalStorageBalancedShards";
+
+    /**
+     * This constructor receives the settings for this new storage and the settings for every shard.
+     * The order of the shards must be kept between executions because it determines the routing.
+     *
+     * @param settings for this new storage.
+     * @param shardSettings are the settings (credentials and root) for every Google Drive account.
+     */
+    public UniversalGoogleDriveShardedStorage(UniversalSettings settings, List<UniversalSettings> shardSettings) {
+        super(settings);
+
+        if (shardSettings == null || shardSettings.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard should be provided.");
+        }
+
+        for (UniversalSettings s : shardSettings) {
+            UniversalGoogleDriveStorage shard = newShard(s, shards.size());
+            ring.add(shardName(shards.size()), shard);
+            shards.add(shard);
+        }
+
+        rebalancing = !isBalanced();
+    }
+
+    /**
+     * This method checks if the last completed rebalance was done with the current shards.  A single
+     * shard is always balanced.  If the state can't be read, the rebalance is considered pending.
+     */
+    private boolean isBalanced() {
+        if (shards.size() == 1) {
+            return true;
+        }
+
+        try {
+            return String.valueOf(shards.size()).equals(shards.get(0).getRootProperty(BALANCED_PROPERTY));
+        } catch (UniversalIOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * This method builds a shard forwarding its events to the listeners of this storage.
+     * In write-behind and packing modes every shard gets its own local folders.
+     *
+     * @param shardSettings for the new shard.
+     * @param index is the position of the new shard.
+     */
+    UniversalGoogleDriveStorage newShard(UniversalSettings shardSettings, int index) {
+        String spool = UniversalGoogleDriveStorage.getOption(UniversalGoogleDriveStorage.SPOOL_OPTION);
+        String pack = UniversalGoogleDriveStorage.getOption(UniversalGoogleDriveStorage.PACK_OPTION);
+        UniversalGoogleDriveStorage shard = new UniversalGoogleDriveStorage(shardSettings,
+                    spool == null ? null : new File(spool, shardName(index)),
+                    pack == null ? null : new File(pack, shardName(index)));
+
+        shard.registerListener(new UniversalStorageListenerAdapter() {
+            public void onStoreFile() {
+                triggerOnStoreFileListeners();
+            }
+
+            public void onCreateFolder() {
+                triggerOnCreateFolderListeners();
+            }
+
+            public void onRemoveFile() {
+                triggerOnRemoveFileListeners();
+            }
+
+            public void onRemoveFolder() {
+                triggerOnRemoveFolderListeners();
+            }
+
+            public void onError(UniversalIOException error) {
+                triggerOnErrorListeners(error);
+            }
+
+            public void onFileStored(UniversalStorageData data) {
+                triggerOnFileStoredListeners(data);
+            }
+
+            public void onFolderCreated(UniversalStorageData data) {
+                triggerOnFolderCreatedListeners(data);
+            }
+
+            public void onFileRemoved() {
+                triggerOnFileRemovedListeners();
+            }
+
+            public void onFolderRemoved() {
+                triggerOnFolderRemovedListeners();
+            }
+        });
+
+        return shard;
+    }
+
+    private static String shardName(int index) {
+        return "shard-" + index;
+    }
+
+    /**
+     * This method adds a new shard and moves to it the files that it owns now.  While the
+     * rebalance is running, the files not moved yet are read from their current shard.
+     *
+     * @param shardSettings for the new shard.
+     * @throws UniversalIOException when a file couldn't be moved, the rebalance can be resumed calling rebalance.
+     */
+    public void addShard(UniversalSettings shardSettings) throws UniversalIOException {
+        synchronized (lock) {
+            UniversalGoogleDriveStorage shard = newShard(shardSettings, shards.size());
+
+            ConsistentHashRing<UniversalGoogleDriveStorage> next = new ConsistentHashRing<UniversalGoogleDriveStorage>(ring);
+            next.add(shardName(shards.size()), shard);
+            shards.add(shard);
+
+            rebalancing = true;
+            ring = next;
+        }
+
+        rebalance();
+    }
+
+    /**
+     * This method moves every file which is not located within the shard that owns it.
+     * It should be called again after a restart if a previous rebalance didn't complete.
+     * When every file was moved, the amount of shards is recorded as balanced.
+     *
+     * @throws UniversalIOException when a file couldn't be moved.
+     */
+    public void rebalance() throws UniversalIOException {
+        synchronized (lock) {
+            for (UniversalGoogleDriveStorage shard : shards) {
+                for (String key : shard.listFiles()) {
+                    UniversalGoogleDriveStorage owner = ring.get(key);
+                    if (owner != shard) {
+                        move(key, shard, owner);
+                    }
+                }
+            }
+
+            shards.get(0).setRootProperty(BALANCED_PROPERTY, String.valueOf(shards.size()));
+            rebalancing = false;
+        }
+    }
+
+    /**
+     * This method checks if a rebalance is pending, so some files may live within a shard that doesn't own them.
+     */
+    boolean isRebalancing() {
+        return rebalancing;
+    }
+
+    /**
+     * This method copies a file to its new shard and then removes it from the old one.  The key is
+     * locked while it's moving, so a concurrent store or removal waits until the move completes.
+     * If the new shard already has the file, it was stored after the routing changed, so it's newer
+     * and the old copy is just removed.
+     */
+    private void move(String key, UniversalGoogleDriveStorage from, UniversalGoogleDriveStorage to)
+                throws UniversalIOException {
+        lockKey(key);
+        try {
+            if (!from.exists(key)) {
+                /**
+                 * Removed since the shard was listed.
+                 */
+                return;
+            }
+
+            if (!to.exists(key)) {
+                int index = key.lastIndexOf("/");
+                File file = from.retrieveFile(key);
+                try {
+                    to.storeFile(file, index > -1 ? key.substring(0, index) : "");
+                } finally {
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+
+            from.removeFile(key);
+        } finally {
+            unlockKey(key);
+        }
+    }
+
+    /**
+     * This method waits until no other operation is using the key and takes it.
+     */
+    private void lockKey(String key) throws UniversalIOException {
+        synchronized (busyKeys) {
+            while (busyKeys.contains(key)) {
+                try {
+                    busyKeys.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UniversalIOException(e.getMessage());
+                }
+            }
+
+            busyKeys.add(key);
+        }
+    }
+
+    private void unlockKey(String key) {
+        synchronized (busyKeys) {
+            busyKeys.remove(key);
+            busyKeys.notifyAll();
+        }
+    }
+
+    /**
+     * This method returns the shard that owns the passed path.
+     *
+     * @param path is the file's path within the root.
+     */
+    private UniversalGoogleDriveStorage shardFor(String path) {
+        return ring.get(toKey(path));
+    }
+
+    /**
+     * This method returns a shard other than the owner that still has the passed path.
+     * It's used only while a rebalance is pending.
+     *
+     * @param path is the file's path within the root.
+     * @param owner is the shard that owns the path.
+     * @returns the shard or null if no other shard has the file.
+     */
+    private UniversalGoogleDriveStorage locateElsewhere(String path, UniversalGoogleDriveStorage owner)
+                throws UniversalIOException {
+        for (UniversalGoogleDriveStorage shard : shards) {
+            if (shard != owner && shard.exists(path)) {
+                return shard;
+            }
+        }
+
+        return null;
+    }
+
+    private static String toKey(String path) {
+        int index = path.lastIndexOf("/");
+        return index > -1 ? UploadJournal.toKey(path.substring(0, index), path.substring(index + 1)) : path.trim();
+    }
+
+    /**
+     * This method stores a file within the shard that owns its path.
+     *
+     * @param file to be stored within the storage.
+     * @param path is the path for this new file within the root.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void storeFile(File file, String path) throws UniversalIOException {
+        String key = UploadJournal.toKey(path, file.getName());
+
+        lockKey(key);
+        try {
+            ring.get(key).storeFile(file, path);
+        } finally {
+            unlockKey(key);
+        }
+    }
+
+    /**
+     * This method stores a file according to the provided path within the storage provider
+     * according to the current settings.
+     *
+     * @param path pointing to the file which will be stored within the storage.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void storeFile(String path) throws UniversalIOException {
+        this.storeFile(new File(path), null);
+    }
+
+    /**
+     * This method stores a file according to the provided path within the storage provider according to the current settings.
+     *
+     * @param path pointing to the file which will be stored within the storage.
+     * @param targetPath is the path within the storage.
+     *
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void storeFile(String path, String targetPath) throws UniversalIOException {
+        PathValidator.validatePath(path);
+        PathValidator.validatePath(targetPath);
+
+        this.storeFile(new File(path), targetPath);
+    }
+
+    /**
+     * This method removes a file from the shard that owns its path.  While a rebalance is pending, the file
+     * is removed from any other shard that still has it too.
+     *
+     * @param path is the object's path within the storage.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void removeFile(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        String key = toKey(path);
+        lockKey(key);
+        try {
+            UniversalGoogleDriveStorage owner = shardFor(path);
+            owner.removeFile(path);
+
+            if (rebalancing) {
+                for (UniversalGoogleDriveStorage shard : shards) {
+                    if (shard != owner && shard.exists(path)) {
+                        shard.removeFile(path);
+                    }
+                }
+            }
+        } finally {
+            unlockKey(key);
+        }
+    }
+
+    /**
+     * This method creates a new folder within every shard.
+     *
+     * @param path is the folder's path.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void createFolder(String path) throws UniversalIOException {
+        for (UniversalGoogleDriveStorage shard : shards) {
+            shard.createFolder(path);
+        }
+    }
+
+    /**
+     * This method removes the folder located on that path within every shard that has it.
+     * The folders are created lazily by storeFile, so only some shards may have it.
+     *
+     * @param path of the folder.
+     * @throws UniversalIOException if no shard has the folder.
+     */
+    void removeFolder(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        if ("".equals(path.trim())) {
+            return;
+        }
+
+        boolean removed = false;
+        for (UniversalGoogleDriveStorage shard : shards) {
+            if (shard.folderExists(path)) {
+                shard.removeFolder(path);
+                removed = true;
+            }
+        }
+
+        if (!removed) {
+            UniversalIOException error = new UniversalIOException(path + " doesn't exist within storage.");
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method retrieves a file from the shard that owns its path.  While a rebalance is pending and
+     * the owner doesn't have the file, it's retrieved from the shard that still has it.
+     *
+     * @param path in context.
+     * @returns a file pointing to the retrieved file.
+     */
+    public File retrieveFile(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        if ("".equals(path.trim())) {
+            return null;
+        }
+
+        UniversalGoogleDriveStorage owner = shardFor(path);
+        try {
+            return owner.retrieveFile(path);
+        } catch (UniversalIOException e) {
+            UniversalGoogleDriveStorage shard = rebalancing ? locateElsewhere(path, owner) : null;
+            if (shard == null) {
+                throw e;
+            }
+
+            return shard.retrieveFile(path);
+        }
+    }
+
+    /**
+     * This method retrieves a file from the shard that owns its path as InputStream.  While a rebalance is
+     * pending and the owner doesn't have the file, it's retrieved from the shard that still has it.
+     *
+     * @param path in context.
+     * @returns an InputStream pointing to the retrieved file.
+     */
+    public InputStream retrieveFileAsStream(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        if ("".equals(path.trim())) {
+            return null;
+        }
+
+        UniversalGoogleDriveStorage owner = shardFor(path);
+        try {
+            return owner.retrieveFileAsStream(path);
+        } catch (UniversalIOException e) {
+            UniversalGoogleDriveStorage shard = rebalancing ? locateElsewhere(path, owner) : null;
+            if (shard == null) {
+                throw e;
+            }
+
+            return shard.retrieveFileAsStream(path);
+        }
+    }
+
+    /**
+     * This method checks if a file exists within the storage without downloading it.
+     *
+     * @param path is the file's path within the root.
+     * @returns true if the file exists.
+     */
+    public boolean exists(String path) throws UniversalIOException {
+        return statAll(Collections.singletonList(path), false).containsKey(path);
+    }
+
+    /**
+     * This method retrieves the metadata of a file without downloading it.
+     *
+     * @param path is the file's path within the root.
+     * @returns the metadata or null if the file doesn't exist.
+     */
+    public GoogleDriveFileStat stat(String path) throws UniversalIOException {
+        return statAll(Collections.singletonList(path)).get(path);
+    }
+
+    /**
+     * This method retrieves the metadata of several files without downloading them.
+     * The paths are grouped by shard and every shard resolves its paths in bulk.  While a rebalance
+     * is pending, the paths missing within their owner are looked up within the other shards.
+     *
+     * @param paths are the files' paths within the root.
+     * @returns a map by path with the metadata of the existing files, the missing files are not included.
+     */
+    public Map<String, GoogleDriveFileStat> statAll(Collection<String> paths) throws UniversalIOException {
+        return statAll(paths, true);
+    }
+
+    /**
+     * This method retrieves the metadata of several files without downloading them.
+     *
+     * @param paths are the files' paths within the root.
+     * @param checksums is false to skip the md5 checksum of the files not uploaded yet.
+     * @returns a map by path with the metadata of the existing files, the missing files are not included.
+     */
+    private Map<String, GoogleDriveFileStat> statAll(Collection<String> paths, boolean checksums) throws UniversalIOException {
+        Map<UniversalGoogleDriveStorage, List<String>> byShard = new LinkedHashMap<UniversalGoogleDriveStorage, List<String>>();
+        for (String path : paths) {
+            PathValidator.validatePath(path);
+
+            UniversalGoogleDriveStorage shard = shardFor(path);
+            List<String> shardPaths = byShard.get(shard);
+            if (shardPaths == null) {
+                shardPaths = new ArrayList<String>();
+                byShard.put(shard, shardPaths);
+            }
+
+            shardPaths.add(path);
+        }
+
+        Map<String, GoogleDriveFileStat> stats = new LinkedHashMap<String, GoogleDriveFileStat>();
+        for (Map.Entry<UniversalGoogleDriveStorage, List<String>> entry : byShard.entrySet()) {
+            stats.putAll(entry.getKey().statAll(entry.getValue(), checksums));
+        }
+
+        if (!rebalancing) {
+            return stats;
+        }
+
+        for (UniversalGoogleDriveStorage shard : shards) {
+            List<String> missing = new ArrayList<String>();
+            for (String path : paths) {
+                if (!stats.containsKey(path) && shardFor(path) != shard) {
+                    missing.add(path);
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                stats.putAll(shard.statAll(missing, checksums));
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * This method cleans the context of every shard.
+     */
+    public void clean() throws UniversalIOException {
+        for (UniversalGoogleDriveStorage shard : shards) {
+            shard.clean();
+        }
+    }
+
+    /**
+     * This method wipes the root folder of every shard.
+     */
+    public void wipe() throws UniversalIOException {
+        for (UniversalGoogleDriveStorage shard : shards) {
+            shard.wipe();
+        }
+    }
+}
@@ -6,19 +6,37 @@ import com.universal.storage.settings.UniversalSettings;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.apache.commons.io.FileUtils;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.googleapis.media.MediaHttpUploader;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.FileList;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 
 /**
@@ -26,44 +44,332 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
  * This implementation will manage file using a Google Drive folder as a root storage.
  */
 public class UniversalGoogleDriveStorage extends UniversalStorage {
+    /**
+     * Option (system property or environment variable) with the spool folder for the write-behind mode.
+     */
+    static final String SPOOL_OPTION = "google_drive_spool";
+    /**
+     * Option (system property or environment variable) with the max requests per second for every Drive client.
+     */
+    static final String RATE_OPTION = "google_drive_requests_per_second";
+    /**
+     * Option (system property or environment variable) with the HTTP transport, http2 to use the JDK HttpClient.
+     */
+    static final String TRANSPORT_OPTION = "google_drive_transport";
+    /**
+     * Option (system property or environment variable) with the local folder for the packing mode.
+     */
+    static final String PACK_OPTION = "google_drive_pack";
+    /**
+     * Option (system property or environment variable) with the max size in bytes of the files to be packed.
+     */
+    static final String PACK_THRESHOLD_OPTION = "google_drive_pack_threshold";
+    private static final long PACK_THRESHOLD = 10 * 1024;
+    private static final long PACK_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int WRITE_BEHIND_BATCH_SIZE = 50;
+    private static final long WRITE_BEHIND_MAX_DELAY = 60000;
+    private static final int WRITE_BEHIND_MAX_ATTEMPTS = 10;
+    private static final int STAT_NAMES_PER_QUERY = 50;
+
     private Drive service;
-    private static GoogleCredential credential = null;
-    private static final Object lock = new Object();
+    private HttpTransport transport;
+    private GoogleCredential credential = null;
+    private final Object lock = new Object();
+    private UploadJournal journal;
+    private final Object writeBehindLock = new Object();
+    private String uploading;
+    private SegmentPacker packer;
+    /**
+     * Packed files whose copy uploaded as usual may still exist, because deleting it failed.
+     */
+    private final Set<String> uncheckedKeys = Collections.synchronizedSet(new HashSet<String>());
 
     /**
      * This constructor receives the settings for this new FileStorage instance.
+     * The write-behind mode will be enabled if the option google_drive_spool is set.
      * 
      * @param settings for this new FileStorage instance.
      */
     public UniversalGoogleDriveStorage(UniversalSettings settings) {
+        this(settings, getOption(SPOOL_OPTION) == null ? null : new File(getOption(SPOOL_OPTION)));
+    }
+
+    /**
+     * This constructor receives the settings and the spool folder for this new FileStorage instance.
+     * With a spool folder, storeFile journals the file locally and returns immediately, a background 
+     * uploader will upload it and will fire the onFileStored event when the upload completes.
+     * 
+     * @param settings for this new FileStorage instance.
+     * @param spool is the folder for the write-behind journal, null to upload files synchronously.
+     */
+    public UniversalGoogleDriveStorage(UniversalSettings settings, File spool) {
+        this(settings, spool, getOption(PACK_OPTION) == null ? null : new File(getOption(PACK_OPTION)));
+    }
+
+    /**
+     * This constructor receives the settings, the spool folder and the packing folder for this new FileStorage instance.
+     * With a packing folder, the small files are appended to segment objects instead of being uploaded one by one.
+     * 
+     * @param settings for this new FileStorage instance.
+     * @param spool is the folder for the write-behind journal, null to upload files synchronously.
+     * @param pack is the local folder for the open segment, null to disable the packing mode.
+     */
+    UniversalGoogleDriveStorage(UniversalSettings settings, File spool, File pack) {
         super(settings);
         initializeDrive();
+
+        if (pack != null) {
+            initializePacking(pack);
+        }
+
+        if (spool != null) {
+            initializeWriteBehind(spool);
+        }
+    }
+
+    /**
+     * This constructor receives the settings and an already built Drive client, it's used by tests.
+     * 
+     * @param settings for this new FileStorage instance.
+     * @param service is the Drive client.
+     */
+    UniversalGoogleDriveStorage(UniversalSettings settings, Drive service) {
+        super(settings);
+        this.service = service;
+    }
+
+    /**
+     * This method sets the packer without starting its background flusher, it's used by tests.
+     * 
+     * @param packer of the packing mode.
+     */
+    void setPacker(SegmentPacker packer) {
+        this.packer = packer;
+    }
+
+    /**
+     * This method returns an optional setting looking first at the system properties and then at the
+     * environment variables.
+     * 
+     * @param name of the option.
+     */
+    static String getOption(String name) {
+        String value = System.getProperty(name);
+        if (value == null || "".equals(value.trim())) {
+            value = System.getenv(name);
+        }
+
+        return value == null || "".equals(value.trim()) ? null : value.trim();
     }
 
     /**
      * This method initializes the Drive object.
+     * The credential and the Drive client share the same transport, so they share its connections.
      */
     private void initializeDrive() {
         try {
-            Credential credential = authorize();
+            transport = "http2".equalsIgnoreCase(getOption(TRANSPORT_OPTION)) ? 
+                        new JdkHttp2Transport() : GoogleNetHttpTransport.newTrustedTransport();
+
+            final Credential credential = authorize();
+            HttpRequestInitializer initializer = credential;
+
+            String rate = getOption(RATE_OPTION);
+            if (rate != null) {
+                /**
+                 * Every request (including retries) waits for its turn before being executed.
+                 */
+                final RequestRateLimiter limiter = new RequestRateLimiter(Double.parseDouble(rate));
+                initializer = new HttpRequestInitializer() {
+                    public void initialize(HttpRequest request) throws IOException {
+                        credential.initialize(request);
+
+                        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+                        request.setInterceptor(new HttpExecuteInterceptor() {
+                            public void intercept(HttpRequest executed) throws IOException {
+                                limiter.acquire();
+                                if (interceptor != null) {
+                                    interceptor.intercept(executed);
+                                }
+                            }
+                        });
+                    }
+                };
+            }
+
             service = new Drive.Builder(
-                    GoogleNetHttpTransport.newTrustedTransport(), 
+                    transport, 
                     JacksonFactory.getDefaultInstance(), 
-                    credential).setApplicationName("Universal Storage").build();
+                    initializer).setApplicationName("Universal Storage").build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * This method loads the packing index and starts the background flusher and compactor.
+     * 
+     * @param pack is the local folder for the open segment.
+     */
+    private void initializePacking(File pack) {
+        try {
+            String threshold = getOption(PACK_THRESHOLD_OPTION);
+            packer = new SegmentPacker(this, service, this.settings.getRoot(), pack, 
+                        threshold == null ? PACK_THRESHOLD : Long.parseLong(threshold), PACK_SEGMENT_SIZE);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        packer.start();
+    }
+
+    /**
+     * This method opens the journal and starts the background uploader.  Pending uploads 
+     * from a previous run will be resumed.
+     * 
+     * @param spool is the folder for the write-behind journal.
+     */
+    private void initializeWriteBehind(File spool) {
+        try {
+            journal = new UploadJournal(spool);
         } catch (Exception e) {
             e.printStackTrace();
             throw new IllegalArgumentException(e.getMessage());
         }
+
+        Thread uploader = new Thread(new Runnable() {
+            public void run() {
+                drainJournal();
+            }
+        }, "universal-storage-write-behind");
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    /**
+     * This method uploads the journaled files in batches.  Only the last version of every path is 
+     * uploaded and within a batch the folders are resolved once.  A transient failure postpones only 
+     * that entry using an exponential backoff, the other paths keep being uploaded meanwhile.  The files 
+     * remain within the journal until their upload completes.
+     * An entry that fails with a permanent error, or fails WRITE_BEHIND_MAX_ATTEMPTS times, is moved 
+     * to the dead letter folder of the spool so it doesn't block the next uploads.
+     * 
+     * The write-behind lock is held only to check and complete the entries, never while uploading.
+     */
+    private void drainJournal() {
+        while (true) {
+            try {
+                boolean failed = false;
+
+                try {
+                    Map<String, String> folders = new HashMap<String, String>();
+                    for (UploadJournal.Entry entry : journal.take(WRITE_BEHIND_BATCH_SIZE)) {
+                        synchronized (writeBehindLock) {
+                            if (!journal.isPending(entry)) {
+                                /**
+                                 * The upload was cancelled by removeFile or wipe.
+                                 */
+                                continue;
+                            }
+
+                            uploading = entry.getKey();
+                        }
+
+                        Exception failure = null;
+                        try {
+                            doUpload(entry.getContent(), entry.getFileName(), entry.getPath(), folders);
+                        } catch (Exception e) {
+                            failure = e;
+                        }
+
+                        synchronized (writeBehindLock) {
+                            uploading = null;
+                            writeBehindLock.notifyAll();
+
+                            if (!journal.isPending(entry)) {
+                                /**
+                                 * The upload was cancelled meanwhile, removeFile or wipe will delete what was uploaded.
+                                 */
+                                continue;
+                            }
+
+                            if (failure == null) {
+                                journal.complete(entry);
+                                continue;
+                            }
+
+                            this.triggerOnErrorListeners(new UniversalIOException(failure.getMessage()));
+
+                            int attempt = entry.getAttempts() + 1;
+                            if (isPermanent(failure) || !entry.getContent().exists() || attempt >= WRITE_BEHIND_MAX_ATTEMPTS) {
+                                File dead = journal.deadLetter(entry);
+
+                                this.triggerOnErrorListeners(new UniversalIOException(entry.getKey() + 
+                                            " couldn't be uploaded" + (dead == null ? "." : (", moved to " + dead))));
+                            } else {
+                                journal.retry(entry, Math.min(1000L << Math.min(attempt - 1, 6), WRITE_BEHIND_MAX_DELAY));
+                                folders.clear();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    /**
+                     * The journal couldn't be written.
+                     */
+                    this.triggerOnErrorListeners(new UniversalIOException(e.getMessage()));
+                    failed = true;
+                }
+
+                if (failed) {
+                    Thread.sleep(1000);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * This method waits until the upload in progress is done.  It's called holding the write-behind lock.
+     * 
+     * @param key is the logical path of the file, null to wait for any upload.
+     */
+    private void awaitUpload(String key) throws InterruptedException {
+        while (uploading != null && (key == null || key.equals(uploading))) {
+            writeBehindLock.wait();
+        }
+    }
+
+    /**
+     * This method checks if an upload error will happen again no matter how many times the upload is retried:
+     * the root doesn't exist, the spooled content is missing or Google Drive rejected the request.
+     * 
+     * @param e is the upload error.
+     */
+    private static boolean isPermanent(Exception e) {
+        if (e instanceof UniversalIOException || e instanceof FileNotFoundException) {
+            return true;
+        }
+
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status >= 400 && status < 500 && status != 403 && status != 408 && status != 429;
+        }
+
+        return false;
     }
 
     /**
      * This method builds a Credential instance for Google Drive service.
+     * Every instance has its own credential, so instances with different settings use different accounts.
      */
     private Credential authorize() throws IOException, GeneralSecurityException {
         synchronized(lock) {
             if (credential == null || credential.getExpiresInSeconds() < 10) {
                 GoogleCredential.Builder credentialBuilder = new GoogleCredential.Builder().
-                    setTransport(GoogleNetHttpTransport.newTrustedTransport()).
+                    setTransport(transport).
                     setJsonFactory(JacksonFactory.getDefaultInstance()).
                     setClientSecrets(this.settings.getGoogleDriveClientId(), this.settings.getGoogleDriveClientSecret());
 
@@ -94,6 +400,9 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
      * 
      * If this file is a folder, a error will be thrown informing that should call the createFolder method.
      * 
+     * In write-behind mode the file is journaled within the spool folder and this method returns immediately, 
+     * the onFileStored event will be fired when the background upload completes.
+     * 
      * Validations:
      * Validates if root is a bucket.
      * 
@@ -111,54 +420,162 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
         if (path == null) {
             path = "";
         }
-        
-        try {
-            List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() + 
-                        "' and trashed = false").execute().getFiles();
 
-            if (files.isEmpty()) {
-                UniversalIOException error = new UniversalIOException(this.settings.getRoot() + " doesn't exist as a root storage.");
+        if (journal != null) {
+            try {
+                journal.append(file, path);
+            } catch (Exception e) {
+                UniversalIOException error = new UniversalIOException(e.getMessage());
                 this.triggerOnErrorListeners(error);
                 throw error;
             }
 
-            String rootId = files.get(0).getId();
-            if (!path.trim().equals("")) {
-                String [] subFolders = path.trim().split("/");
-                
-                com.google.api.services.drive.model.File currentRootFile = new com.google.api.services.drive.model.File();
-                currentRootFile.setId(rootId);
+            return;
+        }
 
-                com.google.api.services.drive.model.File rootFile = discoverPath(subFolders, 0, currentRootFile);
-                
-                rootId = rootFile == null ? null : rootFile.getId();
+        upload(file, file.getName(), path, new HashMap<String, String>());
+    }
+
+    /**
+     * This method uploads a file within the storage replacing the file if already exists.
+     * 
+     * @param file is the content to be uploaded.
+     * @param fileName is the name of the file within the storage.
+     * @param path is the path for this file within the root.
+     * @param folders is a cache of the folder ids already resolved, by path.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    private void upload(File file, String fileName, String path, Map<String, String> folders) throws UniversalIOException {
+        try {
+            doUpload(file, fileName, path, folders);
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method uploads a file within the storage replacing the file if already exists.
+     * The errors are thrown as they are, without triggering the error listeners.
+     * 
+     * @param file is the content to be uploaded.
+     * @param fileName is the name of the file within the storage.
+     * @param path is the path for this file within the root.
+     * @param folders is a cache of the folder ids already resolved, by path.
+     * @throws UniversalIOException when the root doesn't exist.
+     */
+    private void doUpload(File file, String fileName, String path, Map<String, String> folders) throws Exception {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file + " doesn't exist.");
+        }
+
+        String key = UploadJournal.toKey(path, fileName);
+        if (packer != null && packer.accepts(file)) {
+            /**
+             * A packed file has no copy uploaded as usual, so that copy is only looked for the first time
+             * the file is packed.  The file is packed before deleting that copy, so a failure doesn't lose it.
+             */
+            boolean check = !packer.contains(key) || uncheckedKeys.contains(key);
+            if (check) {
+                uncheckedKeys.add(key);
             }
 
-            deleteFiles(rootId, file.getName());
+            /**
+             * The onFileStored event will be fired when the segment is uploaded.
+             */
+            this.triggerOnStoreFileListeners();
+            packer.pack(file, key);
 
-            com.google.api.services.drive.model.File fileMetadata = new com.google.api.services.drive.model.File();
-            fileMetadata.setName(file.getName());
-            fileMetadata.setParents(Arrays.asList(rootId));
+            if (check) {
+                /**
+                 * The folders aren't created for packed files.
+                 */
+                String folderId = resolveFolder(path, false, folders);
+                if (folderId != null) {
+                    deleteFiles(folderId, fileName);
+                }
 
-            FileContent mediaContent = new FileContent("", file);
+                uncheckedKeys.remove(key);
+            }
 
-            Drive.Files.Create insert = service.files().create(fileMetadata, mediaContent);
-            MediaHttpUploader uploader = insert.getMediaHttpUploader();
-            uploader.setDirectUploadEnabled(true);
+            return;
+        }
 
-            this.triggerOnStoreFileListeners();
-            
-            com.google.api.services.drive.model.File newFile = insert.execute();
-            
-            this.triggerOnFileStoredListeners(new UniversalStorageData(file.getName(), 
-                            newFile.getWebViewLink(),
-                            newFile.getId(), 
-                            this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))));
-        } catch (Exception e) {
-            UniversalIOException error = new UniversalIOException(e.getMessage());
-            this.triggerOnErrorListeners(error);
-            throw error;
+        String rootId = resolveFolder(path, true, folders);
+        deleteFiles(rootId, fileName);
+
+        com.google.api.services.drive.model.File fileMetadata = new com.google.api.services.drive.model.File();
+        fileMetadata.setName(fileName);
+        fileMetadata.setParents(Arrays.asList(rootId));
+
+        FileContent mediaContent = new FileContent("", file);
+
+        Drive.Files.Create insert = service.files().create(fileMetadata, mediaContent);
+        MediaHttpUploader uploader = insert.getMediaHttpUploader();
+        uploader.setDirectUploadEnabled(true);
+
+        this.triggerOnStoreFileListeners();
+        
+        com.google.api.services.drive.model.File newFile = insert.execute();
+
+        if (packer != null) {
+            /**
+             * The packed file is removed once the new one was uploaded, so a failed upload doesn't lose it.
+             */
+            packer.remove(key);
+        }
+        
+        this.triggerOnFileStoredListeners(new UniversalStorageData(fileName, 
+                        newFile.getWebViewLink(),
+                        newFile.getId(), 
+                        this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))));
+    }
+
+    /**
+     * This method resolves the id of a folder within the root, using and filling the cache of folder ids.
+     * 
+     * @param path is the path of the folder within the root.
+     * @param createFolders if the missing folders will be created.
+     * @param folders is a cache of the folder ids already resolved, by path.
+     * @returns the id of the folder or null if it doesn't exist and createFolders is false.
+     * @throws UniversalIOException when the root doesn't exist.
+     */
+    private String resolveFolder(String path, boolean createFolders, Map<String, String> folders)
+                throws IOException, UniversalIOException {
+        String folderId = folders.get(path);
+        if (folderId != null) {
+            return folderId;
+        }
+
+        String rootId = folders.get("");
+        if (rootId == null) {
+            List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() + 
+                        "' and trashed = false").execute().getFiles();
+
+            if (files.isEmpty()) {
+                throw new UniversalIOException(this.settings.getRoot() + " doesn't exist as a root storage.");
+            }
+
+            rootId = files.get(0).getId();
+            folders.put("", rootId);
+        }
+
+        if (path.trim().equals("")) {
+            return rootId;
+        }
+
+        com.google.api.services.drive.model.File currentRootFile = new com.google.api.services.drive.model.File();
+        currentRootFile.setId(rootId);
+
+        com.google.api.services.drive.model.File rootFile = discoverPath(path.trim().split("/"), 0, currentRootFile, createFolders);
+        if (rootFile == null) {
+            return null;
         }
+
+        folders.put(path, rootFile.getId());
+
+        return rootFile.getId();
     }
 
     private com.google.api.services.drive.model.File discoverPath(String [] subFolders, int index, 
@@ -210,7 +627,7 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
             return currentParentId;
         }
 
-        return discoverPath(subFolders, ++index, currentParentId);
+        return discoverPath(subFolders, ++index, currentParentId, createFolder);
     }
 
     /**
@@ -290,6 +707,22 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
 
         try {
             this.triggerOnRemoveFileListeners();
+
+            if (journal != null) {
+                synchronized (writeBehindLock) {
+                    journal.cancel(UploadJournal.toKey(path, fileName));
+
+                    /**
+                     * An upload in progress is awaited, so the file deleted below isn't uploaded afterwards.
+                     */
+                    awaitUpload(UploadJournal.toKey(path, fileName));
+                }
+            }
+
+            if (packer != null) {
+                packer.remove(UploadJournal.toKey(path, fileName));
+            }
+
             List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() + 
                         "' and trashed = false").execute().getFiles();
 
@@ -414,6 +847,11 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
                 throw error;
             }
 
+            /**
+             * The packed files don't have folders within Google Drive, so the folder may only have packed files.
+             */
+            boolean packed = packer != null && packer.removeAll(toPrefix(path));
+
             String rootId = files.get(0).getId();
             if (!path.trim().equals("")) {
                 String [] subFolders = path.trim().split("/");
@@ -425,12 +863,12 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
 
                 rootId = rootFile == null ? null : rootFile.getId();
 
-                if (rootId == null) {
+                if (rootId != null) {
+                    service.files().delete(rootId).execute();
+                } else if (!packed) {
                     UniversalIOException error = new UniversalIOException(path + " doesn't exist within storage.");
                     this.triggerOnErrorListeners(error);
                     throw error;
-                } else {
-                    service.files().delete(rootId).execute();
                 }
             }
             this.triggerOnFolderRemovedListeners();
@@ -441,6 +879,98 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
         }
     }
 
+    private static String toPrefix(String path) {
+        return path.trim().endsWith("/") ? path.trim() : path.trim() + "/";
+    }
+
+    /**
+     * This method checks if a folder exists within the storage.
+     * 
+     * @param path of the folder.
+     * @returns true if the folder exists.
+     */
+    boolean folderExists(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        try {
+            List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() + 
+                        "' and mimeType = 'application/vnd.google-apps.folder' and trashed = false").
+                            execute().getFiles();
+
+            if (files.isEmpty()) {
+                return false;
+            }
+
+            if ("".equals(path.trim()) || (packer != null && packer.containsAny(toPrefix(path)))) {
+                return true;
+            }
+
+            com.google.api.services.drive.model.File currentRootFile = new com.google.api.services.drive.model.File();
+            currentRootFile.setId(files.get(0).getId());
+
+            return discoverPath(path.trim().split("/"), 0, currentRootFile, false) != null;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method reads an application property of the root folder.
+     *
+     * @param name of the property.
+     * @returns the value or null if the property isn't set.
+     */
+    String getRootProperty(String name) throws UniversalIOException {
+        try {
+            List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() +
+                        "' and mimeType = 'application/vnd.google-apps.folder' and trashed = false").
+                            setFields("files(id, appProperties)").execute().getFiles();
+
+            if (files.isEmpty()) {
+                UniversalIOException error = new UniversalIOException(this.settings.getRoot() + " doesn't exist as a root storage.");
+                this.triggerOnErrorListeners(error);
+                throw error;
+            }
+
+            Map<String, String> properties = files.get(0).getAppProperties();
+            return properties == null ? null : properties.get(name);
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method sets an application property of the root folder, the other properties are kept.
+     *
+     * @param name of the property.
+     * @param value of the property.
+     */
+    void setRootProperty(String name, String value) throws UniversalIOException {
+        try {
+            List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() +
+                        "' and mimeType = 'application/vnd.google-apps.folder' and trashed = false").
+                            setFields("files(id)").execute().getFiles();
+
+            if (files.isEmpty()) {
+                UniversalIOException error = new UniversalIOException(this.settings.getRoot() + " doesn't exist as a root storage.");
+                this.triggerOnErrorListeners(error);
+                throw error;
+            }
+
+            com.google.api.services.drive.model.File fileMetadata = new com.google.api.services.drive.model.File();
+            fileMetadata.setAppProperties(Collections.singletonMap(name, value));
+            service.files().update(files.get(0).getId(), fileMetadata).execute();
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
     /**
      * This method retrieves a file from the storage.
      * The method will retrieve the file according to the passed path.  
@@ -516,7 +1046,24 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
             path = "";
         }
 
+        if (journal != null) {
+            /**
+             * Files not uploaded yet are served from the spool.
+             */
+            InputStream pending = journal.open(UploadJournal.toKey(path, fileName));
+            if (pending != null) {
+                return pending;
+            }
+        }
+
         try {
+            if (packer != null) {
+                InputStream packed = packer.open(UploadJournal.toKey(path, fileName));
+                if (packed != null) {
+                    return packed;
+                }
+            }
+
             List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() + 
                         "' and trashed = false").execute().getFiles();
 
@@ -572,6 +1119,264 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
         }     
     }
 
+    /**
+     * This method checks if a file exists within the storage without downloading it.
+     * 
+     * @param path is the file's path within the root.
+     * @returns true if the file exists.
+     */
+    public boolean exists(String path) throws UniversalIOException {
+        return statAll(Collections.singletonList(path), false).containsKey(path);
+    }
+
+    /**
+     * This method retrieves the metadata of a file without downloading it.
+     * 
+     * @param path is the file's path within the root.
+     * @returns the metadata or null if the file doesn't exist.
+     */
+    public GoogleDriveFileStat stat(String path) throws UniversalIOException {
+        return statAll(Collections.singletonList(path)).get(path);
+    }
+
+    /**
+     * This method retrieves the metadata of several files without downloading them.
+     * The paths are grouped by folder, so every folder is resolved once and its files are 
+     * looked up using a few metadata-only queries.
+     * 
+     * @param paths are the files' paths within the root.
+     * @returns a map by path with the metadata of the existing files, the missing files are not included.
+     */
+    public Map<String, GoogleDriveFileStat> statAll(Collection<String> paths) throws UniversalIOException {
+        return statAll(paths, true);
+    }
+
+    /**
+     * This method retrieves the metadata of several files without downloading them.
+     * 
+     * @param paths are the files' paths within the root.
+     * @param checksums is false to skip the md5 checksum of the files not uploaded yet, it's null within their metadata.
+     * @returns a map by path with the metadata of the existing files, the missing files are not included.
+     */
+    Map<String, GoogleDriveFileStat> statAll(Collection<String> paths, boolean checksums) throws UniversalIOException {
+        Map<String, GoogleDriveFileStat> stats = new LinkedHashMap<String, GoogleDriveFileStat>();
+        Map<String, Map<String, String>> folders = new LinkedHashMap<String, Map<String, String>>();
+
+        for (String path : paths) {
+            PathValidator.validatePath(path);
+
+            if ("".equals(path.trim()) || path.trim().endsWith("/")) {
+                continue;
+            }
+
+            int index = path.lastIndexOf("/");
+            String folder = index > -1 ? path.substring(0, index) : "";
+            String fileName = index > -1 ? path.substring(index + 1) : path;
+
+            if (journal != null) {
+                /**
+                 * Files not uploaded yet are described from the spool.
+                 */
+                UploadJournal.Entry pending = journal.lookup(UploadJournal.toKey(folder, fileName));
+                if (pending != null && pending.getContent().exists()) {
+                    stats.put(path, new GoogleDriveFileStat(path, null, pending.getContent().length(), 
+                                checksums ? md5(pending) : null, new Date(pending.getContent().lastModified())));
+                    continue;
+                }
+            }
+
+            if (packer != null) {
+                GoogleDriveFileStat packed = packer.stat(UploadJournal.toKey(folder, fileName), path);
+                if (packed != null) {
+                    stats.put(path, packed);
+                    continue;
+                }
+            }
+
+            Map<String, String> names = folders.get(folder);
+            if (names == null) {
+                names = new HashMap<String, String>();
+                folders.put(folder, names);
+            }
+
+            names.put(fileName, path);
+        }
+
+        if (folders.isEmpty()) {
+            return stats;
+        }
+
+        try {
+            List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() + 
+                        "' and trashed = false").setFields("files(id)").execute().getFiles();
+
+            if (files.isEmpty()) {
+                UniversalIOException error = new UniversalIOException(this.settings.getRoot() + " doesn't exist as a root storage.");
+                this.triggerOnErrorListeners(error);
+                throw error;
+            }
+
+            String rootId = files.get(0).getId();
+            for (Map.Entry<String, Map<String, String>> folder : folders.entrySet()) {
+                String folderId = rootId;
+                if (!folder.getKey().trim().equals("")) {
+                    com.google.api.services.drive.model.File currentRootFile = new com.google.api.services.drive.model.File();
+                    currentRootFile.setId(rootId);
+
+                    com.google.api.services.drive.model.File folderFile = discoverPath(folder.getKey().trim().split("/"), 
+                                0, currentRootFile, false);
+
+                    if (folderFile == null) {
+                        continue;
+                    }
+
+                    folderId = folderFile.getId();
+                }
+
+                List<String> names = new ArrayList<String>(folder.getValue().keySet());
+                for (int i = 0; i < names.size(); i += STAT_NAMES_PER_QUERY) {
+                    StringBuilder q = new StringBuilder();
+                    for (String name : names.subList(i, Math.min(i + STAT_NAMES_PER_QUERY, names.size()))) {
+                        q.append(q.length() == 0 ? "" : " or ").append("name = '").append(escape(name)).append("'");
+                    }
+
+                    String pageToken = null;
+                    do {
+                        FileList result = service.files().list().setQ("'" + folderId + "' in parents and (" + q + 
+                                    ") and mimeType != 'application/vnd.google-apps.folder' and trashed = false").
+                                        setFields("nextPageToken, files(id, name, size, md5Checksum, modifiedTime)").
+                                        setPageToken(pageToken).execute();
+
+                        for (com.google.api.services.drive.model.File f : result.getFiles()) {
+                            String path = folder.getValue().get(f.getName());
+                            if (path != null && !stats.containsKey(path)) {
+                                stats.put(path, new GoogleDriveFileStat(path, f.getId(), 
+                                            f.getSize() == null ? 0 : f.getSize(), f.getMd5Checksum(),
+                                            f.getModifiedTime() == null ? null : new Date(f.getModifiedTime().getValue())));
+                            }
+                        }
+
+                        pageToken = result.getNextPageToken();
+                    } while (pageToken != null);
+                }
+            }
+
+            return stats;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method escapes a value to be used within a Drive query.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
+    }
+
+    /**
+     * This method returns the md5 checksum of a journaled file.
+     */
+    private static String md5(UploadJournal.Entry entry) throws UniversalIOException {
+        try {
+            return entry.getMd5();
+        } catch (IOException e) {
+            throw new UniversalIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * This method calculates the md5 checksum of a content, as Google Drive reports it.
+     * 
+     * @param in is the content, it's read until its end but not closed.
+     */
+    static String md5(InputStream in) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+
+            byte [] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * This method lists the paths of every file within the root, the paths are relative to the root.
+     * 
+     * @returns the list of paths.
+     */
+    List<String> listFiles() throws UniversalIOException {
+        try {
+            List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() + 
+                        "' and mimeType = 'application/vnd.google-apps.folder' and trashed = false").
+                            execute().getFiles();
+
+            if (files.isEmpty()) {
+                UniversalIOException error = new UniversalIOException(this.settings.getRoot() + " doesn't exist as a root storage.");
+                this.triggerOnErrorListeners(error);
+                throw error;
+            }
+
+            List<String> paths = new ArrayList<String>();
+            listFiles(files.get(0).getId(), "", paths);
+
+            if (packer != null) {
+                Set<String> packed = packer.keys();
+                paths.removeAll(packed);
+                paths.addAll(packed);
+            }
+
+            return paths;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method walks the folder collecting the paths of its files.
+     * 
+     * @param folderId is the folder in context.
+     * @param prefix is the path of the folder within the root.
+     * @param paths is where the paths will be collected.
+     */
+    private void listFiles(String folderId, String prefix, List<String> paths) throws IOException {
+        String pageToken = null;
+        do {
+            FileList result = service.files().list().setQ("'" + folderId + "' in parents and trashed = false").
+                            setFields("nextPageToken, files(id, name, mimeType)").
+                            setPageToken(pageToken).execute();
+
+            for (com.google.api.services.drive.model.File f : result.getFiles()) {
+                if ("application/vnd.google-apps.folder".equals(f.getMimeType())) {
+                    if (packer != null && "".equals(prefix) && SegmentPacker.PACKS_FOLDER.equals(f.getName())) {
+                        continue;
+                    }
+
+                    listFiles(f.getId(), prefix + f.getName() + "/", paths);
+                } else {
+                    paths.add(prefix + f.getName());
+                }
+            }
+
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+    }
+
     /**
      * This method cleans the context of this storage.  This method doesn't remove any file from the storage.
      * The method will clean the tmp folder to release disk usage.
@@ -592,6 +1397,13 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
      */
     public void wipe() throws UniversalIOException {
         try {
+            if (journal != null) {
+                synchronized (writeBehindLock) {
+                    journal.cancelAll();
+                    awaitUpload(null);
+                }
+            }
+
             List<com.google.api.services.drive.model.File> files = service.files().list().setQ("name = '" + this.settings.getRoot() + 
                         "' and mimeType = 'application/vnd.google-apps.folder' and trashed = false").
                             execute().getFiles();
@@ -602,6 +1414,11 @@ public class UniversalGoogleDriveStorage extends UniversalStorage {
                 for (com.google.api.services.drive.model.File f : files) {
                     service.files().delete(f.getId()).execute();
                 }
+
+                if (packer != null) {
+                    packer.reset();
+                    uncheckedKeys.clear();
+                }
             } else {
                 UniversalIOException error = new UniversalIOException(this.settings.getRoot() + " doesn't exist as a root storage.");
                 this.triggerOnErrorListeners(error);
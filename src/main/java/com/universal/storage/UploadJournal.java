@@ -0,0 +1,496 @@
+package com.universal.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.TeeInputStream;
+
+/**
+ * This class is the local journal used by the write-behind mode.
+ * Every journaled file is copied into the spool folder and recorded within an append-only log, so
+ * the pending uploads survive a crash and will be resumed the next time the journal is opened.
+ *
+ * Log format (one record per line):
+ * Q seq               -> the last sequence used, written when the log is compacted.
+ * S seq path fileName -> a file was spooled and is pending to be uploaded.
+ * D seq               -> the upload was completed (or superseded, cancelled or dead-lettered).
+ *
+ * The log is compacted when there aren't pending entries or when it doubled its size since the
+ * last compaction and is bigger than the max journal size.  Entries that can't be uploaded are
+ * moved to the folder dead within the spool.
+ *
+ * Only the latest entry of every path is uploaded, the older ones are released when they're taken.
+ * A failed entry waits for its own retry time, the entries of other paths keep being taken meanwhile.
+ */
+class UploadJournal {
+    private static final String JOURNAL_NAME = "journal.log";
+    static final String DEAD_LETTER_FOLDER = "dead";
+    private static final long MAX_JOURNAL_SIZE = 1024 * 1024;
+    private static final String ENCODING = "UTF-8";
+
+    private final File spool;
+    private final File journalFile;
+    private final long maxJournalSize;
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private final Map<String, Entry> latest = new HashMap<String, Entry>();
+    private FileOutputStream journal;
+    private long sequence;
+    private long compactedSize;
+
+    /**
+     * This class represents a spooled file pending to be uploaded.
+     */
+    static class Entry {
+        private final long seq;
+        private final String path;
+        private final String fileName;
+        private final File content;
+        private String md5;
+        private int attempts;
+        private long retryAt;
+
+        Entry(long seq, String path, String fileName, File content, String md5) {
+            this.seq = seq;
+            this.path = path;
+            this.fileName = fileName;
+            this.content = content;
+            this.md5 = md5;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        File getContent() {
+            return content;
+        }
+
+        String getKey() {
+            return UploadJournal.toKey(path, fileName);
+        }
+
+        /**
+         * This method returns the md5 checksum of the spooled content.  It's calculated while the file is
+         * journaled, the entries replayed after a restart calculate it once the first time it's needed.
+         */
+        synchronized String getMd5() throws IOException {
+            if (md5 == null) {
+                InputStream in = new FileInputStream(content);
+                try {
+                    md5 = UniversalGoogleDriveStorage.md5(in);
+                } finally {
+                    in.close();
+                }
+            }
+
+            return md5;
+        }
+
+        /**
+         * This method returns how many times the upload of this entry failed.
+         */
+        int getAttempts() {
+            return attempts;
+        }
+    }
+
+    /**
+     * This constructor opens the journal located within the spool folder and replays it.
+     *
+     * @param spool is the folder where the journal and the spooled files are stored.
+     * @throws IOException when the journal can't be opened or replayed.
+     */
+    UploadJournal(File spool) throws IOException {
+        this(spool, MAX_JOURNAL_SIZE);
+    }
+
+    /**
+     * This constructor opens the journal located within the spool folder and replays it.
+     *
+     * @param spool is the folder where the journal and the spooled files are stored.
+     * @param maxJournalSize is the size in bytes from which the log is compacted while there are pending entries.
+     * @throws IOException when the journal can't be opened or replayed.
+     */
+    UploadJournal(File spool, long maxJournalSize) throws IOException {
+        this.spool = spool;
+        this.journalFile = new File(spool, JOURNAL_NAME);
+        this.maxJournalSize = maxJournalSize;
+
+        FileUtils.forceMkdir(spool);
+        replay();
+        rewrite();
+    }
+
+    /**
+     * This method builds the logical key of a file within the storage.
+     *
+     * @param path is the folder path within the root.
+     * @param fileName is the file name.
+     */
+    static String toKey(String path, String fileName) {
+        String folder = path == null ? "" : path.trim();
+        while (folder.startsWith("/")) {
+            folder = folder.substring(1);
+        }
+
+        while (folder.endsWith("/")) {
+            folder = folder.substring(0, folder.length() - 1);
+        }
+
+        return "".equals(folder) ? fileName : (folder + "/" + fileName);
+    }
+
+    /**
+     * This method copies the file into the spool folder and appends a durable record to the journal.
+     * When this method returns, the file will be uploaded even if the process crashes.
+     *
+     * @param file to be journaled.
+     * @param path is the target path within the root.
+     * @returns the new entry.
+     */
+    synchronized Entry append(File file, String path) throws IOException {
+        long seq = ++sequence;
+        File content = new File(spool, seq + "-" + file.getName());
+
+        String md5 = copy(file, content);
+        sync(content);
+
+        Entry entry = new Entry(seq, path, file.getName(), content, md5);
+        write("S\t" + seq + "\t" + URLEncoder.encode(path, ENCODING) + "\t" + URLEncoder.encode(file.getName(), ENCODING));
+
+        register(entry);
+        notifyAll();
+
+        return entry;
+    }
+
+    /**
+     * This method waits until there are entries ready to be uploaded and returns up to max entries 
+     * in journal order.  Only the latest entry of every path is returned, the entries superseded by 
+     * a newer one are released.  The entries waiting for their retry time are skipped.
+     *
+     * @param max is the max amount of entries to return.
+     */
+    synchronized List<Entry> take(int max) throws InterruptedException, IOException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+
+            List<Entry> batch = new ArrayList<Entry>();
+            for (Entry entry : new ArrayList<Entry>(pending.values())) {
+                if (latest.get(entry.getKey()) != entry) {
+                    release(entry, false);
+                } else if (entry.retryAt > now) {
+                    next = Math.min(next, entry.retryAt);
+                } else if (batch.size() < max) {
+                    batch.add(entry);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                return batch;
+            }
+
+            if (next == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(next - now);
+            }
+        }
+    }
+
+    /**
+     * This method postpones a failed entry, it won't be taken again until the delay elapses.
+     *
+     * @param entry that failed.
+     * @param delay in milliseconds.
+     */
+    synchronized void retry(Entry entry, long delay) {
+        entry.attempts++;
+        entry.retryAt = System.currentTimeMillis() + delay;
+    }
+
+    /**
+     * This method marks an entry as done and releases its spooled content.
+     *
+     * @param entry to be completed.
+     */
+    synchronized void complete(Entry entry) throws IOException {
+        release(entry, false);
+    }
+
+    /**
+     * This method gives up an entry that can't be uploaded.  Its spooled content is moved to
+     * the dead letter folder, so it can be inspected or stored again.
+     *
+     * @param entry to be dead-lettered.
+     * @returns the dead-lettered content or null if the entry wasn't pending.
+     */
+    synchronized File deadLetter(Entry entry) throws IOException {
+        return release(entry, true);
+    }
+
+    /**
+     * This method checks if this specific entry is still pending.  An entry stops being pending when
+     * it's completed, cancelled or dead-lettered, even if a newer entry for the same key exists.
+     *
+     * @param entry in context.
+     */
+    synchronized boolean isPending(Entry entry) {
+        return pending.get(entry.getSeq()) == entry;
+    }
+
+    private File release(Entry entry, boolean deadLetter) throws IOException {
+        if (pending.get(entry.getSeq()) != entry) {
+            return null;
+        }
+
+        pending.remove(entry.getSeq());
+        if (latest.get(entry.getKey()) == entry) {
+            latest.remove(entry.getKey());
+        }
+
+        write("D\t" + entry.getSeq());
+
+        File dead = null;
+        if (deadLetter && entry.getContent().exists()) {
+            dead = new File(new File(spool, DEAD_LETTER_FOLDER), entry.getContent().getName());
+            FileUtils.deleteQuietly(dead);
+            FileUtils.moveFile(entry.getContent(), dead);
+        } else {
+            FileUtils.deleteQuietly(entry.getContent());
+        }
+
+        if (pending.isEmpty() || (journalFile.length() > maxJournalSize && journalFile.length() > 2 * compactedSize)) {
+            rewrite();
+        }
+
+        return dead;
+    }
+
+    /**
+     * This method cancels every pending upload for the passed key.
+     *
+     * @param key is the logical path of the file.
+     */
+    synchronized void cancel(String key) throws IOException {
+        for (Entry entry : new ArrayList<Entry>(pending.values())) {
+            if (entry.getKey().equals(key)) {
+                complete(entry);
+            }
+        }
+    }
+
+    /**
+     * This method cancels every pending upload.
+     */
+    synchronized void cancelAll() throws IOException {
+        for (Entry entry : new ArrayList<Entry>(pending.values())) {
+            complete(entry);
+        }
+    }
+
+    /**
+     * This method returns the latest pending entry for the passed key.
+     *
+     * @param key is the logical path of the file.
+     * @returns the entry or null if there isn't a pending upload for that key.
+     */
+    synchronized Entry lookup(String key) {
+        return latest.get(key);
+    }
+
+    /**
+     * This method opens the spooled content of the latest pending entry for the passed key.
+     *
+     * @param key is the logical path of the file.
+     * @returns an InputStream or null if there isn't a pending upload for that key.
+     */
+    synchronized InputStream open(String key) {
+        Entry entry = latest.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        try {
+            return new FileInputStream(entry.getContent());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private void register(Entry entry) {
+        pending.put(entry.getSeq(), entry);
+        latest.put(entry.getKey(), entry);
+    }
+
+    /**
+     * This method replays the journal rebuilding the pending entries.  A truncated last line
+     * (crash while appending) is ignored because that store call was never acknowledged.
+     */
+    private void replay() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String [] record = line.split("\t", -1);
+                try {
+                    long seq = Long.parseLong(record[1]);
+                    sequence = Math.max(sequence, seq);
+
+                    if ("S".equals(record[0]) && record.length == 4) {
+                        String path = URLDecoder.decode(record[2], ENCODING);
+                        String fileName = URLDecoder.decode(record[3], ENCODING);
+                        File content = new File(spool, seq + "-" + fileName);
+                        if (content.exists()) {
+                            register(new Entry(seq, path, fileName, content, null));
+                        }
+                    } else if ("D".equals(record[0])) {
+                        Entry entry = pending.remove(seq);
+                        if (entry != null && latest.get(entry.getKey()) == entry) {
+                            latest.remove(entry.getKey());
+                        }
+                    }
+                } catch (RuntimeException ignore) {}
+            }
+        } finally {
+            reader.close();
+        }
+
+        /**
+         * Rebuild the latest map following the journal order.
+         */
+        latest.clear();
+        for (Entry entry : pending.values()) {
+            latest.put(entry.getKey(), entry);
+        }
+
+        /**
+         * Release spooled files which are not pending anymore.
+         */
+        File [] spooled = spool.listFiles();
+        if (spooled != null) {
+            for (File f : spooled) {
+                if (f.isFile() && !f.equals(journalFile) && !isSpooled(f)) {
+                    FileUtils.deleteQuietly(f);
+                }
+            }
+        }
+    }
+
+    private boolean isSpooled(File f) {
+        for (Entry entry : pending.values()) {
+            if (entry.getContent().equals(f)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * This method compacts the journal keeping only the pending records.
+     */
+    private void rewrite() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+
+        File compacted = new File(spool, JOURNAL_NAME + ".tmp");
+        FileOutputStream out = new FileOutputStream(compacted);
+        try {
+            /**
+             * The sequence is kept, so new spooled files never reuse the name of a dead-lettered one.
+             */
+            out.write(("Q\t" + sequence + "\n").getBytes(ENCODING));
+
+            for (Entry entry : pending.values()) {
+                out.write(("S\t" + entry.getSeq() + "\t" + URLEncoder.encode(entry.getPath(), ENCODING) + "\t" +
+                            URLEncoder.encode(entry.getFileName(), ENCODING) + "\n").getBytes(ENCODING));
+            }
+
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        Files.move(compacted.toPath(), journalFile.toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journal = new FileOutputStream(journalFile, true);
+        compactedSize = journalFile.length();
+    }
+
+    /**
+     * This method returns the current size of the log in bytes.
+     */
+    synchronized long size() {
+        return journalFile.length();
+    }
+
+    private void write(String record) throws IOException {
+        journal.write((record + "\n").getBytes(ENCODING));
+        journal.flush();
+        journal.getFD().sync();
+    }
+
+    /**
+     * This method copies a file keeping its modification time and returns the md5 checksum of the content,
+     * so the file is read once.
+     */
+    private static String copy(File file, File target) throws IOException {
+        String md5;
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                md5 = UniversalGoogleDriveStorage.md5(new TeeInputStream(in, out));
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        target.setLastModified(file.lastModified());
+        return md5;
+    }
+
+    private static void sync(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+}
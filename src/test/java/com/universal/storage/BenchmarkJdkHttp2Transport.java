@@ -0,0 +1,158 @@
+package com.universal.storage;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * This class benchmarks the HTTP/2 transport against the default HTTP/1.1 transport uploading many
+ * small files concurrently to a local h2c (HTTP/2 without TLS) stub server.  The stub answers like
+ * the Drive upload endpoint after a fixed latency.
+ *
+ * Both transports are warmed up with the same load before being measured, so the JIT compilation
+ * isn't measured, and then they're measured alternately for some rounds.  The stub reports the client
+ * sockets and the protocols it saw, so the HTTP/2 rounds can be checked to use a single connection.
+ *
+ * It's not a test, run it with:
+ * mvn test-compile exec:java -Dexec.mainClass=com.universal.storage.BenchmarkJdkHttp2Transport -Dexec.classpathScope=test
+ *
+ * The system properties benchmark_requests, benchmark_threads, benchmark_size, benchmark_latency,
+ * benchmark_warmup and benchmark_rounds change the load.
+ */
+public class BenchmarkJdkHttp2Transport {
+    private static final String RESPONSE = "{\"kind\": \"drive#file\", \"id\": \"0B1234567890\", \"name\": \"file.txt\"}";
+
+    private static final Set<String> sockets = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final Set<String> protocols = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public static void main(String [] args) throws Exception {
+        int requests = Integer.getInteger("benchmark_requests", 5000);
+        int threads = Integer.getInteger("benchmark_threads", 32);
+        int size = Integer.getInteger("benchmark_size", 4096);
+        final long latency = Long.getLong("benchmark_latency", 5);
+        int warmup = Integer.getInteger("benchmark_warmup", 3);
+        int rounds = Integer.getInteger("benchmark_rounds", 3);
+
+        Server server = new Server();
+        HttpConfiguration configuration = new HttpConfiguration();
+        ServerConnector connector = new ServerConnector(server, new HttpConnectionFactory(configuration),
+                    new HTTP2CServerConnectionFactory(configuration));
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                        HttpServletResponse response) throws IOException {
+                sockets.add(request.getRemoteAddr() + ":" + request.getRemotePort());
+                protocols.add(request.getProtocol());
+
+                IOUtils.toByteArray(request.getInputStream());
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                response.setStatus(200);
+                response.setContentType("application/json; charset=UTF-8");
+                response.getOutputStream().write(RESPONSE.getBytes("UTF-8"));
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+
+        String url = "http://127.0.0.1:" + connector.getLocalPort() + "/upload/drive/v3/files?uploadType=media";
+        try {
+            System.out.println(requests + " uploads of " + size + " bytes, " + threads + " threads, " + latency + "ms of latency");
+
+            HttpTransport http1 = new NetHttpTransport();
+            HttpTransport http2 = new JdkHttp2Transport();
+
+            /**
+             * Over h2c the HttpClient upgrades the connection only within a request without a body,
+             * over TLS (as with Google Drive) HTTP/2 is negotiated when connecting.
+             */
+            http2.createRequestFactory().buildGetRequest(new GenericUrl(url)).execute().parseAsString();
+
+            for (int i = 0; i < warmup; i++) {
+                load(http1, url, requests, threads, size);
+                load(http2, url, requests, threads, size);
+            }
+
+            for (int i = 0; i < rounds; i++) {
+                run("HTTP/1.1 (NetHttpTransport)", http1, url, requests, threads, size);
+                run("HTTP/2 (JdkHttp2Transport)", http2, url, requests, threads, size);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void run(String name, HttpTransport transport, String url, int requests, int threads,
+                int size) throws Exception {
+        sockets.clear();
+        protocols.clear();
+
+        long start = System.nanoTime();
+        int failures = load(transport, url, requests, threads, size);
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+
+        System.out.println(name + ": " + elapsed + "ms, " + (requests * 1000L / Math.max(elapsed, 1)) + " uploads/s, " +
+                    sockets.size() + " connections used, " + new TreeSet<String>(protocols) + ", " + failures + " failures");
+    }
+
+    /**
+     * This method uploads concurrently and returns the amount of failed uploads.
+     */
+    private static int load(final HttpTransport transport, final String url, int requests, int threads,
+                final int size) throws InterruptedException {
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < requests; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        upload(transport, url, size);
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+
+        return failures.get();
+    }
+
+    private static void upload(HttpTransport transport, String url, int size) throws IOException {
+        HttpResponse response = transport.createRequestFactory().
+                    buildPostRequest(new GenericUrl(url), new ByteArrayContent("text/plain", new byte[size])).execute();
+        try {
+            response.parseAsString();
+        } finally {
+            response.disconnect();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the routing of the paths to the shards.  These tests don't need Google Drive.
+ */
+public class TestConsistentHashRing extends TestCase {
+    private static final int KEYS = 10000;
+
+    /**
+     * This test will route a key to the same node every time and within a copy of the ring.
+     */
+    public void testRoutingIsStable() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>();
+        ring.add("shard-0", "shard-0");
+        ring.add("shard-1", "shard-1");
+        ring.add("shard-2", "shard-2");
+
+        ConsistentHashRing<String> copy = new ConsistentHashRing<String>(ring);
+        for (int i = 0; i < KEYS; i++) {
+            String key = "myfolder/file" + i + ".txt";
+            assertEquals(ring.get(key), ring.get(key));
+            assertEquals(ring.get(key), copy.get(key));
+        }
+    }
+
+    /**
+     * This test will return null when the ring is empty.
+     */
+    public void testEmptyRing() {
+        assertNull(new ConsistentHashRing<String>().get("file.txt"));
+    }
+
+    /**
+     * This test will move about 1/n of the keys after adding the n-th node, and only to the new node.
+     */
+    public void testAddMovesAboutOneNth() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>();
+        ring.add("shard-0", "shard-0");
+        ring.add("shard-1", "shard-1");
+        ring.add("shard-2", "shard-2");
+
+        ConsistentHashRing<String> next = new ConsistentHashRing<String>(ring);
+        next.add("shard-3", "shard-3");
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "myfolder/file" + i + ".txt";
+            if (!ring.get(key).equals(next.get(key))) {
+                assertEquals("shard-3", next.get(key));
+                moved++;
+            }
+        }
+
+        double share = (double) moved / KEYS;
+        assertTrue("Moved share: " + share, share > 0.25 * 0.6 && share < 0.25 * 1.4);
+    }
+}
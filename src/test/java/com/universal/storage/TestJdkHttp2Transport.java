@@ -0,0 +1,293 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * This class tests the mapping of the requests and responses of the HTTP/2 transport against a local
+ * server.  These tests don't need Google Drive.
+ */
+public class TestJdkHttp2Transport extends TestCase {
+    private HttpServer server;
+    private String url;
+    private JdkHttp2Transport transport;
+
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+
+        server.createContext("/echo", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte [] body = IOUtils.toByteArray(exchange.getRequestBody());
+                exchange.getResponseHeaders().add("Content-Type", "text/plain");
+                exchange.getResponseHeaders().add("X-Method", exchange.getRequestMethod());
+                exchange.getResponseHeaders().add("X-Echo", String.valueOf(exchange.getRequestHeaders().getFirst("X-Request")));
+                exchange.getResponseHeaders().add("X-Multi", "a");
+                exchange.getResponseHeaders().add("X-Multi", "b");
+                exchange.sendResponseHeaders(201, 0);
+
+                OutputStream out = exchange.getResponseBody();
+                out.write(String.valueOf(body.length).getBytes("UTF-8"));
+                out.close();
+            }
+        });
+
+        server.createContext("/slow", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                IOUtils.toByteArray(exchange.getRequestBody());
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException ignore) {}
+
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+
+        server.createContext("/download", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                IOUtils.toByteArray(exchange.getRequestBody());
+                long delay = Long.parseLong(exchange.getRequestURI().getQuery());
+                exchange.sendResponseHeaders(200, 0);
+
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    for (int i = 0; i < 5; i++) {
+                        out.write("chunk".getBytes("UTF-8"));
+                        out.flush();
+                        Thread.sleep(delay);
+                    }
+                } catch (InterruptedException ignore) {
+                } catch (IOException ignore) {
+                    /**
+                     * The client gave up.
+                     */
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+        transport = new JdkHttp2Transport();
+    }
+
+    protected void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * This method returns a content of the passed size written in small chunks, every chunk waits the passed delay.
+     */
+    private static StreamingContent content(final int size, final long delay) {
+        return new StreamingContent() {
+            public void writeTo(OutputStream out) throws IOException {
+                byte [] chunk = new byte[1024];
+                for (int written = 0; written < size; written += chunk.length) {
+                    out.write(chunk, 0, Math.min(chunk.length, size - written));
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.getMessage());
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private static String header(LowLevelHttpResponse response, String name) throws IOException {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            if (response.getHeaderName(i).equalsIgnoreCase(name)) {
+                values.append(values.length() == 0 ? "" : ",").append(response.getHeaderValue(i));
+            }
+        }
+
+        return values.length() == 0 ? null : values.toString();
+    }
+
+    private static String body(LowLevelHttpResponse response) throws IOException {
+        InputStream in = response.getContent();
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * This test will map the status, the headers and the body of the response.
+     */
+    public void testStatusAndHeadersAreMapped() throws Exception {
+        LowLevelHttpRequest request = transport.buildRequest("GET", url + "/echo");
+        request.addHeader("X-Request", "Hello");
+
+        LowLevelHttpResponse response = request.execute();
+
+        assertEquals(201, response.getStatusCode());
+        assertEquals("text/plain", response.getContentType());
+        assertEquals("GET", header(response, "X-Method"));
+        assertEquals("Hello", header(response, "X-Echo"));
+        assertEquals("a,b", header(response, "X-Multi"));
+        assertEquals("0", body(response));
+    }
+
+    /**
+     * This test will stream a body with a known length.
+     */
+    public void testFixedLengthBodyIsStreamed() throws Exception {
+        LowLevelHttpRequest request = transport.buildRequest("PUT", url + "/echo");
+        request.setContentType("application/octet-stream");
+        request.setContentLength(3 * 1024 * 1024);
+        request.setStreamingContent(content(3 * 1024 * 1024, 0));
+
+        LowLevelHttpResponse response = request.execute();
+
+        assertEquals("PUT", header(response, "X-Method"));
+        assertEquals(String.valueOf(3 * 1024 * 1024), body(response));
+    }
+
+    /**
+     * This test will send the files and the byte arrays directly, without the pipe.
+     */
+    public void testReopenableContentIsSent() throws Exception {
+        File file = File.createTempFile("universal-storage-http2", ".bin");
+        try {
+            FileUtils.writeByteArrayToFile(file, new byte[3 * 1024 * 1024 + 1]);
+
+            LowLevelHttpRequest request = transport.buildRequest("POST", url + "/echo");
+            request.setContentLength(file.length());
+            request.setStreamingContent(new FileContent("application/octet-stream", file));
+            assertEquals(String.valueOf(file.length()), body(request.execute()));
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+
+        LowLevelHttpRequest request = transport.buildRequest("POST", url + "/echo");
+        request.setContentLength(5);
+        request.setStreamingContent(new ByteArrayContent("text/plain", "Hello World!".getBytes("UTF-8"), 6, 5));
+        assertEquals("5", body(request.execute()));
+
+        request = transport.buildRequest("POST", url + "/echo");
+        request.setContentLength(1);
+        request.setStreamingContent(new FileContent("text/plain", file));
+        try {
+            request.execute();
+            fail("The file doesn't exist anymore.");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * This test will stream a body with an unknown length.
+     */
+    public void testChunkedBodyIsStreamed() throws Exception {
+        LowLevelHttpRequest request = transport.buildRequest("POST", url + "/echo");
+        request.setContentLength(-1);
+        request.setStreamingContent(content(1024 * 1024 + 7, 0));
+
+        assertEquals(String.valueOf(1024 * 1024 + 7), body(request.execute()));
+    }
+
+    /**
+     * This test will fail the request when the content fails, a truncated body mustn't be sent as complete.
+     */
+    public void testFailingContentFailsTheRequest() throws Exception {
+        LowLevelHttpRequest request = transport.buildRequest("POST", url + "/echo");
+        request.setContentLength(-1);
+        request.setStreamingContent(new StreamingContent() {
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(new byte[4096]);
+                throw new IOException("The source was truncated.");
+            }
+        });
+
+        try {
+            request.execute();
+            fail("The request should fail.");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * This test will upload a body for longer than the read timeout, the timeout starts when the body was sent.
+     */
+    public void testReadTimeoutExcludesTheUpload() throws Exception {
+        LowLevelHttpRequest request = transport.buildRequest("POST", url + "/echo");
+        request.setTimeout(1000, 500);
+        request.setContentLength(-1);
+        request.setStreamingContent(content(30 * 1024, 50));
+
+        assertEquals(String.valueOf(30 * 1024), body(request.execute()));
+    }
+
+    /**
+     * This test will time out waiting for a slow response, with and without a body.
+     */
+    public void testReadTimeoutOnSlowResponse() throws Exception {
+        LowLevelHttpRequest request = transport.buildRequest("GET", url + "/slow");
+        request.setTimeout(1000, 300);
+
+        try {
+            request.execute();
+            fail("The request should time out.");
+        } catch (IOException expected) {
+        }
+
+        request = transport.buildRequest("POST", url + "/slow");
+        request.setTimeout(1000, 300);
+        request.setContentLength(10);
+        request.setStreamingContent(content(10, 0));
+
+        try {
+            request.execute();
+            fail("The request should time out.");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * This test will time out a download that stalls after its headers, as the default transport does.
+     */
+    public void testStalledDownloadTimesOut() throws Exception {
+        LowLevelHttpRequest request = transport.buildRequest("GET", url + "/download?2000");
+        request.setTimeout(1000, 300);
+
+        LowLevelHttpResponse response = request.execute();
+        long start = System.currentTimeMillis();
+        try {
+            body(response);
+            fail("The download should time out.");
+        } catch (IOException expected) {
+            assertTrue(System.currentTimeMillis() - start < 1500);
+        }
+    }
+
+    /**
+     * This test will download a body slower than the read timeout in total, the timeout applies to every read.
+     */
+    public void testSlowDownloadWithinReadTimeout() throws Exception {
+        LowLevelHttpRequest request = transport.buildRequest("GET", url + "/download?100");
+        request.setTimeout(1000, 300);
+
+        assertEquals("chunkchunkchunkchunkchunk", body(request.execute()));
+    }
+}
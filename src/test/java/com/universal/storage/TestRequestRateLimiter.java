@@ -0,0 +1,72 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the spacing of the requests.  These tests don't need Google Drive.
+ */
+public class TestRequestRateLimiter extends TestCase {
+    /**
+     * This test will space the requests according to the requests per second.
+     */
+    public void testRequestsAreSpaced() throws Exception {
+        RequestRateLimiter limiter = new RequestRateLimiter(20);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            limiter.acquire();
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+
+        /**
+         * The first request goes out immediately, the next ten wait 50ms each.
+         */
+        assertTrue("Elapsed: " + elapsed, elapsed >= 450);
+        assertTrue("Elapsed: " + elapsed, elapsed < 2000);
+    }
+
+    /**
+     * This test will space the requests of concurrent threads as well.
+     */
+    public void testConcurrentRequestsAreSpaced() throws Exception {
+        final RequestRateLimiter limiter = new RequestRateLimiter(50);
+        Thread [] threads = new Thread[4];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            limiter.acquire();
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e.getMessage());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+
+        /**
+         * 20 requests at 50 per second, the first one is immediate.
+         */
+        assertTrue("Elapsed: " + elapsed, elapsed >= 350);
+    }
+
+    /**
+     * This test will reject a non positive rate.
+     */
+    public void testInvalidRate() {
+        try {
+            new RequestRateLimiter(0);
+            fail("The rate should be rejected.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
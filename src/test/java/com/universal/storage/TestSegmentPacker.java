@@ -0,0 +1,566 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.FileList;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.universal.storage.settings.UniversalSettings;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * This class tests the packing mode against an in-memory Google Drive served locally.
+ * These tests don't need Google Drive.
+ */
+public class TestSegmentPacker extends TestCase {
+    private static final String ROOT = "universalstorage";
+    private static final long THRESHOLD = 1024;
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+
+    private FakeDrive fake;
+    private Drive drive;
+    private UniversalGoogleDriveStorage storage;
+    private File folder;
+
+    protected void setUp() throws Exception {
+        fake = new FakeDrive();
+        fake.create(ROOT, FakeDrive.FOLDER, null, null, null);
+
+        drive = new Drive.Builder(new JdkHttp2Transport(), JacksonFactory.getDefaultInstance(), null).
+                    setRootUrl(fake.getUrl()).setApplicationName("universal-storage-test").build();
+        storage = new UniversalGoogleDriveStorage(new UniversalSettings(new File("src/test/resources/settings.json")), drive);
+
+        folder = new File(System.getProperty("java.io.tmpdir"), "universal-storage-packer-" + System.nanoTime());
+        FileUtils.forceMkdir(folder);
+    }
+
+    protected void tearDown() {
+        fake.stop();
+        FileUtils.deleteQuietly(folder);
+    }
+
+    private SegmentPacker packer(String node) throws IOException {
+        return new SegmentPacker(storage, drive, ROOT, new File(folder, node), THRESHOLD, SEGMENT_SIZE);
+    }
+
+    private File write(String content) throws IOException {
+        File file = new File(folder, "file-" + System.nanoTime() + ".txt");
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+
+        return file;
+    }
+
+    private static String read(SegmentPacker packer, String key) throws IOException {
+        InputStream in = packer.open(key);
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * This test will read the packed files from the open segment, from their segment and after a restart.
+     */
+    public void testPackedFilesAreReadAfterRestart() throws Exception {
+        SegmentPacker packer = packer("node");
+        packer.pack(write("Hello World!"), "file.txt");
+        packer.pack(write("Hello Folder!"), "myfolder/file.txt");
+
+        assertEquals("Hello World!", read(packer, "file.txt"));
+
+        packer.flush();
+
+        assertEquals("Hello Folder!", read(packer, "myfolder/file.txt"));
+        assertEquals(1, fake.named("segment-").size());
+
+        SegmentPacker restarted = packer("node");
+
+        assertEquals(new TreeSet<String>(Arrays.asList("file.txt", "myfolder/file.txt")), restarted.keys());
+        assertEquals("Hello World!", read(restarted, "file.txt"));
+        assertEquals(UniversalGoogleDriveStorage.md5(new ByteArrayInputStream("Hello Folder!".getBytes("UTF-8"))),
+                    restarted.stat("myfolder/file.txt", "myfolder/file.txt").getMd5());
+    }
+
+    /**
+     * This test will write the changes of every flush as a small delta, without rewriting the whole index.
+     */
+    public void testIndexChangesAreWrittenAsDeltas() throws Exception {
+        SegmentPacker packer = packer("node");
+        packer.pack(write("first"), "first.txt");
+        packer.flush();
+
+        packer.pack(write("second"), "second.txt");
+        packer.flush();
+        packer.remove("first.txt");
+        packer.flush();
+
+        FakeDrive.Entry index = fake.named("index").get(0);
+        assertEquals(0, index.updates);
+        assertEquals(2, fake.named("index.").size());
+
+        SegmentPacker restarted = packer("node");
+
+        assertEquals(new TreeSet<String>(Arrays.asList("second.txt")), restarted.keys());
+        assertEquals("second", read(restarted, "second.txt"));
+    }
+
+    /**
+     * This test will reject a second node while the first one holds the lock.
+     */
+    public void testAnotherNodeIsRejected() throws Exception {
+        packer("node");
+
+        try {
+            packer("other-node");
+            fail("Only one node can pack files within a root.");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * This test will rewrite a segment with dead bytes and delete the old one.
+     */
+    public void testCompactionRewritesSegment() throws Exception {
+        SegmentPacker packer = packer("node");
+        packer.pack(write("dead bytes"), "dead.txt");
+        packer.pack(write("live"), "live.txt");
+        packer.flush();
+
+        String old = fake.named("segment-").get(0).id;
+        packer.remove("dead.txt");
+        packer.compact();
+
+        assertEquals(1, fake.named("segment-").size());
+        assertFalse(old.equals(fake.named("segment-").get(0).id));
+        assertEquals("live", read(packer, "live.txt"));
+        assertNull(read(packer, "dead.txt"));
+
+        SegmentPacker restarted = packer("node");
+        assertEquals("live", read(restarted, "live.txt"));
+        assertEquals(1, restarted.keys().size());
+    }
+
+    /**
+     * This test will keep a file replaced while its segment was being compacted.  The packer isn't
+     * locked during the download, so the file can be packed and flushed meanwhile.
+     */
+    public void testCompactionKeepsFilesReplacedMeanwhile() throws Exception {
+        final SegmentPacker packer = packer("node");
+        packer.pack(write("dead"), "dead.txt");
+        packer.pack(write("old"), "file.txt");
+        packer.flush();
+        packer.remove("dead.txt");
+
+        final File newer = write("new");
+        fake.onDownload = new Runnable() {
+            public void run() {
+                try {
+                    packer.pack(newer, "file.txt");
+                    packer.flush();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e.getMessage());
+                }
+            }
+        };
+
+        packer.compact();
+
+        assertEquals("new", read(packer, "file.txt"));
+        assertEquals("new", read(packer("node"), "file.txt"));
+    }
+
+    /**
+     * This test will remove the packed files within a folder.
+     */
+    public void testRemoveAllDropsFolder() throws Exception {
+        SegmentPacker packer = packer("node");
+        packer.pack(write("a"), "myfolder/a.txt");
+        packer.pack(write("b"), "myfolder/sub/b.txt");
+        packer.flush();
+        packer.pack(write("c"), "other/c.txt");
+
+        assertTrue(packer.removeAll("myfolder/"));
+        assertFalse(packer.removeAll("myfolder/"));
+        assertFalse(packer.containsAny("myfolder/"));
+        assertTrue(packer.containsAny("other/"));
+        assertEquals(new TreeSet<String>(Arrays.asList("other/c.txt")), packer.keys());
+    }
+
+    /**
+     * This test will look for the file uploaded as usual only the first time a file is packed, packing
+     * it again doesn't send any request to Google Drive.
+     */
+    public void testPackedFileIsStoredWithoutRequests() throws Exception {
+        SegmentPacker packer = packer("node");
+        storage.setPacker(packer);
+
+        FakeDrive.Entry root = fake.named(ROOT).get(0);
+        FakeDrive.Entry myfolder = fake.create("myfolder", FakeDrive.FOLDER, Arrays.asList(root.id), null, null);
+        fake.create("file.txt", "text/plain", Arrays.asList(myfolder.id), null, "Uploaded".getBytes("UTF-8"));
+
+        File file = new File(folder, "file.txt");
+        FileUtils.writeStringToFile(file, "First", "UTF-8");
+
+        int requests = fake.requests;
+        storage.storeFile(file, "myfolder");
+
+        assertEquals(4, fake.requests - requests);
+        assertTrue(fake.named("file.txt").isEmpty());
+
+        requests = fake.requests;
+        FileUtils.writeStringToFile(file, "Second", "UTF-8");
+        storage.storeFile(file, "myfolder");
+        FileUtils.writeStringToFile(file, "Third", "UTF-8");
+        storage.storeFile(file, "myfolder");
+
+        assertEquals(0, fake.requests - requests);
+        assertEquals("Third", read(packer, "myfolder/file.txt"));
+    }
+
+    /**
+     * This test will keep the file uploaded as usual when packing the new one fails.
+     */
+    public void testFailedPackKeepsUploadedFile() throws Exception {
+        SegmentPacker packer = packer("node");
+        storage.setPacker(packer);
+
+        FakeDrive.Entry root = fake.named(ROOT).get(0);
+        fake.create("file.txt", "text/plain", Arrays.asList(root.id), null, "Uploaded".getBytes("UTF-8"));
+
+        File file = new File(folder, "file.txt");
+        FileUtils.writeStringToFile(file, "Packed", "UTF-8");
+        FileUtils.deleteDirectory(new File(folder, "node"));
+
+        try {
+            storage.storeFile(file, null);
+            fail("The open segment can't be written.");
+        } catch (Exception expected) {
+        }
+
+        assertEquals(1, fake.named("file.txt").size());
+        assertFalse(packer.contains("file.txt"));
+    }
+
+    /**
+     * This test will merge the undersized segments into one, even when all their files are live.
+     */
+    public void testCompactionMergesSmallSegments() throws Exception {
+        SegmentPacker packer = packer("node");
+        packer.pack(write("a"), "a.txt");
+        packer.flush();
+        packer.pack(write("b"), "b.txt");
+        packer.flush();
+        packer.pack(write("c"), "myfolder/c.txt");
+        packer.flush();
+
+        assertEquals(3, fake.named("segment-").size());
+
+        packer.compact();
+
+        assertEquals(1, fake.named("segment-").size());
+        assertEquals("a", read(packer, "a.txt"));
+        assertEquals("b", read(packer, "b.txt"));
+
+        SegmentPacker restarted = packer("node");
+        assertEquals("c", read(restarted, "myfolder/c.txt"));
+        assertEquals(3, restarted.keys().size());
+    }
+
+    /**
+     * This test will keep a young open segment locally, so a low write rate doesn't upload tiny segments.
+     */
+    public void testYoungOpenSegmentIsNotSealed() throws Exception {
+        SegmentPacker packer = packer("node");
+        packer.pack(write("a"), "a.txt");
+        packer.flushIfDue();
+
+        assertTrue(fake.named("segment-").isEmpty());
+        assertEquals("a", read(packer, "a.txt"));
+    }
+
+    /**
+     * This class is an in-memory Google Drive serving the requests used by the packing mode.
+     */
+    private static class FakeDrive implements HttpHandler {
+        static final String FOLDER = "application/vnd.google-apps.folder";
+
+        private final HttpServer server;
+        private final Map<String, Entry> files = new LinkedHashMap<String, Entry>();
+        private int counter;
+        private volatile int requests;
+        private volatile Runnable onDownload;
+
+        static class Entry {
+            String id;
+            String name;
+            String mimeType;
+            List<String> parents;
+            Map<String, String> appProperties;
+            byte [] content;
+            long created;
+            int updates;
+        }
+
+        FakeDrive() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/", this);
+            server.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        synchronized Entry create(String name, String mimeType, List<String> parents, Map<String, String> properties,
+                    byte [] content) {
+            Entry entry = new Entry();
+            entry.id = "id" + (++counter);
+            entry.name = name;
+            entry.mimeType = mimeType;
+            entry.parents = parents;
+            entry.appProperties = properties;
+            entry.content = content;
+            entry.created = counter;
+            files.put(entry.id, entry);
+
+            return entry;
+        }
+
+        synchronized List<Entry> named(String prefix) {
+            List<Entry> entries = new ArrayList<Entry>();
+            for (Entry entry : files.values()) {
+                if (prefix.endsWith("-") || prefix.endsWith(".") ? entry.name.startsWith(prefix) : entry.name.equals(prefix)) {
+                    entries.add(entry);
+                }
+            }
+
+            return entries;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            synchronized (this) {
+                requests++;
+            }
+
+            try {
+                String method = exchange.getRequestMethod();
+                String path = exchange.getRequestURI().getPath();
+                Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+                byte [] body = IOUtils.toByteArray(in);
+
+                if (path.startsWith("/upload/")) {
+                    upload(exchange, method, path, body);
+                } else if ("GET".equals(method) && path.endsWith("/files")) {
+                    list(exchange, query.get("q"));
+                } else if ("GET".equals(method) && "media".equals(query.get("alt"))) {
+                    download(exchange, lookup(path));
+                } else if ("POST".equals(method)) {
+                    com.google.api.services.drive.model.File metadata = parse(body);
+                    respond(exchange, 200, toJson(create(metadata.getName(), metadata.getMimeType(), metadata.getParents(),
+                                metadata.getAppProperties(), null)));
+                } else if ("PATCH".equals(method)) {
+                    Entry entry = lookup(path);
+                    com.google.api.services.drive.model.File metadata = parse(body);
+                    synchronized (this) {
+                        if (metadata.getAppProperties() != null) {
+                            entry.appProperties = metadata.getAppProperties();
+                        }
+                    }
+                    respond(exchange, 200, toJson(entry));
+                } else if ("DELETE".equals(method)) {
+                    synchronized (this) {
+                        files.remove(lookup(path).id);
+                    }
+                    exchange.sendResponseHeaders(204, -1);
+                } else {
+                    respond(exchange, 404, "{}");
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private synchronized Entry lookup(String path) {
+            return files.get(path.substring(path.lastIndexOf("/") + 1));
+        }
+
+        private void list(HttpExchange exchange, String q) throws IOException {
+            String parent = match("'([^']+)' in parents", q);
+            String name = match("name = '([^']*)'", q);
+            String contains = match("name contains '([^']*)'", q);
+            String mimeType = match("mimeType = '([^']*)'", q);
+
+            List<com.google.api.services.drive.model.File> result = new ArrayList<com.google.api.services.drive.model.File>();
+            synchronized (this) {
+                for (Entry entry : files.values()) {
+                    if ((parent == null || (entry.parents != null && entry.parents.contains(parent))) &&
+                                (name == null || name.equals(entry.name)) &&
+                                (contains == null || entry.name.startsWith(contains)) &&
+                                (mimeType == null || mimeType.equals(entry.mimeType))) {
+                        result.add(toModel(entry));
+                    }
+                }
+            }
+
+            respond(exchange, 200, JacksonFactory.getDefaultInstance().toString(new FileList().setFiles(result)));
+        }
+
+        private void download(HttpExchange exchange, Entry entry) throws IOException {
+            Runnable hook = onDownload;
+            if (hook != null && entry.name.startsWith("segment-")) {
+                onDownload = null;
+                hook.run();
+            }
+
+            byte [] content = entry.content;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                String [] bounds = range.substring("bytes=".length()).split("-");
+                content = Arrays.copyOfRange(content, Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]) + 1);
+                status = 206;
+            }
+
+            exchange.sendResponseHeaders(status, content.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(content);
+            out.close();
+        }
+
+        /**
+         * This method handles the multipart uploads, the first part is the metadata and the second one the content.
+         */
+        private void upload(HttpExchange exchange, String method, String path, byte [] body) throws IOException {
+            String boundary = match("boundary=\"?([^\";]+)", exchange.getRequestHeaders().getFirst("Content-Type"));
+            List<byte []> parts = new ArrayList<byte []>();
+            byte [] delimiter = ("--" + boundary).getBytes("UTF-8");
+
+            int start = indexOf(body, delimiter, 0);
+            while (start >= 0) {
+                int headers = indexOf(body, "\r\n\r\n".getBytes("UTF-8"), start);
+                int end = indexOf(body, ("\r\n--" + boundary).getBytes("UTF-8"), headers);
+                if (headers < 0 || end < 0) {
+                    break;
+                }
+
+                parts.add(Arrays.copyOfRange(body, headers + 4, end));
+                start = end + 2;
+            }
+
+            com.google.api.services.drive.model.File metadata = parse(parts.get(0));
+            Entry entry;
+            if ("PATCH".equals(method)) {
+                entry = lookup(path);
+                synchronized (this) {
+                    entry.content = parts.get(1);
+                    entry.updates++;
+                }
+            } else {
+                entry = create(metadata.getName(), metadata.getMimeType(), metadata.getParents(),
+                            metadata.getAppProperties(), parts.get(1));
+            }
+
+            respond(exchange, 200, toJson(entry));
+        }
+
+        private static int indexOf(byte [] data, byte [] target, int from) {
+            for (int i = Math.max(from, 0); i <= data.length - target.length; i++) {
+                int j = 0;
+                while (j < target.length && data[i + j] == target[j]) {
+                    j++;
+                }
+
+                if (j == target.length) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private static String match(String regex, String value) {
+            Matcher matcher = Pattern.compile(regex).matcher(value == null ? "" : value);
+            return matcher.find() ? matcher.group(1) : null;
+        }
+
+        private static Map<String, String> query(String raw) throws IOException {
+            Map<String, String> query = new HashMap<String, String>();
+            if (raw != null) {
+                for (String pair : raw.split("&")) {
+                    int index = pair.indexOf("=");
+                    if (index > 0) {
+                        query.put(pair.substring(0, index), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+                    }
+                }
+            }
+
+            return query;
+        }
+
+        private static com.google.api.services.drive.model.File parse(byte [] json) throws IOException {
+            if (json.length == 0) {
+                return new com.google.api.services.drive.model.File();
+            }
+
+            return JacksonFactory.getDefaultInstance().fromString(new String(json, "UTF-8"),
+                        com.google.api.services.drive.model.File.class);
+        }
+
+        private synchronized com.google.api.services.drive.model.File toModel(Entry entry) {
+            return new com.google.api.services.drive.model.File().setId(entry.id).setName(entry.name).
+                        setMimeType(entry.mimeType).setParents(entry.parents).setAppProperties(entry.appProperties).
+                        setSize(entry.content == null ? null : Long.valueOf(entry.content.length)).
+                        setCreatedTime(new DateTime(entry.created));
+        }
+
+        private String toJson(Entry entry) throws IOException {
+            return JacksonFactory.getDefaultInstance().toString(toModel(entry));
+        }
+
+        private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+            byte [] content = json.getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(status, content.length);
+
+            OutputStream out = exchange.getResponseBody();
+            out.write(content);
+            out.close();
+        }
+    }
+}
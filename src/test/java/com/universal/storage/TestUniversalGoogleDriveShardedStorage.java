@@ -0,0 +1,354 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.api.services.drive.Drive;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class tests the routing and the rebalance of the sharded storage.  The shards are kept
+ * in memory, so these tests don't need Google Drive.
+ */
+public class TestUniversalGoogleDriveShardedStorage extends TestCase {
+    private UniversalSettings settings;
+    private File folder;
+    private ShardedStorage storage;
+    private final Map<String, String> rootProperties = Collections.synchronizedMap(new HashMap<String, String>());
+
+    protected void setUp() throws Exception {
+        settings = new UniversalSettings(new File("src/test/resources/settings.json"));
+        folder = new File(System.getProperty("java.io.tmpdir"), "universal-storage-sharded-" + System.nanoTime());
+        FileUtils.forceMkdir(folder);
+    }
+
+    protected void tearDown() {
+        FileUtils.deleteQuietly(folder);
+    }
+
+    /**
+     * This method returns a file name within the root which will be moved to shard-1 when it's added.
+     */
+    private static String movingKey() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>();
+        ring.add("shard-0", "shard-0");
+        ring.add("shard-1", "shard-1");
+
+        for (int i = 0; ; i++) {
+            if ("shard-1".equals(ring.get("file" + i + ".txt"))) {
+                return "file" + i + ".txt";
+            }
+        }
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(new File(folder, String.valueOf(System.nanoTime())), name);
+        FileUtils.forceMkdir(file.getParentFile());
+
+        FileWriter fw = new FileWriter(file);
+        try {
+            fw.write(content);
+        } finally {
+            fw.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * This test will keep a version stored while the file was moving, the move mustn't overwrite it.
+     */
+    public void testStoreWhileMovingIsNotOverwritten() throws Exception {
+        final String key = movingKey();
+        storage = new ShardedStorage(settings, 1);
+        storage.storeFile(write(key, "old"), "");
+
+        final File newer = write(key, "new");
+        final List<Thread> writers = new ArrayList<Thread>();
+        storage.shard(0).onRetrieve = new Runnable() {
+            public void run() {
+                Thread writer = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            storage.storeFile(newer, "");
+                        } catch (UniversalIOException e) {
+                            throw new IllegalStateException(e.getMessage());
+                        }
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+                sleep(200);
+            }
+        };
+
+        storage.addShard(settings);
+        writers.get(0).join();
+
+        assertEquals("new", storage.shard(1).files.get(key));
+        assertFalse(storage.shard(0).files.containsKey(key));
+        assertEquals("new", FileUtils.readFileToString(storage.retrieveFile(key), "UTF-8"));
+    }
+
+    /**
+     * This test will keep a file removed while it was moving removed, the move mustn't bring it back.
+     */
+    public void testRemoveWhileMovingIsNotResurrected() throws Exception {
+        final String key = movingKey();
+        storage = new ShardedStorage(settings, 1);
+        storage.storeFile(write(key, "old"), "");
+
+        final List<Thread> removers = new ArrayList<Thread>();
+        storage.shard(0).onRetrieve = new Runnable() {
+            public void run() {
+                Thread remover = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            storage.removeFile(key);
+                        } catch (UniversalIOException e) {
+                            throw new IllegalStateException(e.getMessage());
+                        }
+                    }
+                });
+                remover.start();
+                removers.add(remover);
+                sleep(200);
+            }
+        };
+
+        storage.addShard(settings);
+        removers.get(0).join();
+
+        assertFalse(storage.shard(0).files.containsKey(key));
+        assertFalse(storage.shard(1).files.containsKey(key));
+        assertFalse(storage.exists(key));
+    }
+
+    /**
+     * This test will keep the copy within the new shard when it's already there, it's the newer one.
+     */
+    public void testRebalanceKeepsNewerDestination() throws Exception {
+        String key = movingKey();
+        storage = new ShardedStorage(settings, 2);
+        storage.shard(0).files.put(key, "old");
+        storage.shard(1).files.put(key, "new");
+
+        storage.rebalance();
+
+        assertEquals("new", storage.shard(1).files.get(key));
+        assertFalse(storage.shard(0).files.containsKey(key));
+        assertEquals(0, storage.shard(0).retrieved);
+    }
+
+    /**
+     * This test will read a file not moved yet, as it happens after a restart in the middle of a rebalance.
+     */
+    public void testReadsFallBackToEveryShard() throws Exception {
+        String key = movingKey();
+        storage = new ShardedStorage(settings, 2);
+        storage.shard(0).files.put(key, "old");
+
+        assertTrue(storage.exists(key));
+        assertEquals(key, storage.stat(key).getPath());
+        assertEquals("old", FileUtils.readFileToString(storage.retrieveFile(key), "UTF-8"));
+
+        storage.removeFile(key);
+
+        assertFalse(storage.exists(key));
+    }
+
+    /**
+     * This test will use only the owner once the rebalance completed, the other shards aren't queried.
+     */
+    public void testBalancedStorageUsesOnlyTheOwner() throws Exception {
+        String key = movingKey();
+        storage = new ShardedStorage(settings, 2);
+        assertTrue(storage.isRebalancing());
+
+        storage.rebalance();
+        assertFalse(storage.isRebalancing());
+
+        storage.shard(1).files.put(key, "Hello World!");
+        storage.shard(0).files.put("stale.txt", "stale");
+
+        assertEquals("Hello World!", FileUtils.readFileToString(storage.retrieveFile(key), "UTF-8"));
+        storage.removeFile(key);
+
+        assertEquals(0, storage.shard(0).statted);
+        assertEquals(0, storage.shard(1).statted);
+        assertFalse(storage.shard(1).files.containsKey(key));
+    }
+
+    /**
+     * This test will detect after a restart that the last rebalance didn't complete with the current shards.
+     */
+    public void testPendingRebalanceIsDetectedAfterRestart() throws Exception {
+        storage = new ShardedStorage(settings, 2);
+        storage.rebalance();
+
+        assertFalse(new ShardedStorage(settings, 2).isRebalancing());
+        assertTrue(new ShardedStorage(settings, 3).isRebalancing());
+    }
+
+    /**
+     * This test will remove a folder which exists only within some shards.
+     */
+    public void testRemoveFolderSkipsShardsWithoutIt() throws Exception {
+        storage = new ShardedStorage(settings, 2);
+        storage.shard(0).files.put("myfolder/file.txt", "Hello World!");
+
+        storage.removeFolder("myfolder");
+
+        assertTrue(storage.shard(0).files.isEmpty());
+
+        try {
+            storage.removeFolder("myfolder");
+            fail("The folder doesn't exist within any shard.");
+        } catch (UniversalIOException expected) {
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This class is a sharded storage whose shards are kept in memory.
+     */
+    private class ShardedStorage extends UniversalGoogleDriveShardedStorage {
+        private List<MemoryShard> memoryShards;
+
+        ShardedStorage(UniversalSettings settings, int count) {
+            super(settings, Collections.nCopies(count, settings));
+        }
+
+        UniversalGoogleDriveStorage newShard(UniversalSettings shardSettings, int index) {
+            if (memoryShards == null) {
+                memoryShards = new ArrayList<MemoryShard>();
+            }
+
+            MemoryShard shard = new MemoryShard(shardSettings);
+            memoryShards.add(shard);
+            return shard;
+        }
+
+        MemoryShard shard(int index) {
+            return memoryShards.get(index);
+        }
+    }
+
+    /**
+     * This class is a shard which keeps the content of the files by path.
+     */
+    private class MemoryShard extends UniversalGoogleDriveStorage {
+        private final Map<String, String> files = Collections.synchronizedMap(new HashMap<String, String>());
+        private volatile Runnable onRetrieve;
+        private volatile int retrieved;
+        private volatile int statted;
+
+        MemoryShard(UniversalSettings settings) {
+            super(settings, (Drive) null);
+        }
+
+        void storeFile(File file, String path) throws UniversalIOException {
+            try {
+                files.put(UploadJournal.toKey(path, file.getName()), FileUtils.readFileToString(file, "UTF-8"));
+            } catch (IOException e) {
+                throw new UniversalIOException(e.getMessage());
+            }
+        }
+
+        void removeFile(String path) throws UniversalIOException {
+            files.remove(path);
+        }
+
+        void createFolder(String path) {
+        }
+
+        void removeFolder(String path) throws UniversalIOException {
+            synchronized (files) {
+                Iterator<String> keys = files.keySet().iterator();
+                while (keys.hasNext()) {
+                    if (keys.next().startsWith(path + "/")) {
+                        keys.remove();
+                    }
+                }
+            }
+        }
+
+        boolean folderExists(String path) {
+            synchronized (files) {
+                for (String key : files.keySet()) {
+                    if (key.startsWith(path + "/")) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        public File retrieveFile(String path) throws UniversalIOException {
+            retrieved++;
+            String content = files.get(path);
+            if (content == null) {
+                throw new UniversalIOException(path + " doesn't exist within storage.");
+            }
+
+            if (onRetrieve != null) {
+                Runnable hook = onRetrieve;
+                onRetrieve = null;
+                hook.run();
+            }
+
+            try {
+                return write(path.substring(path.lastIndexOf("/") + 1), content);
+            } catch (IOException e) {
+                throw new UniversalIOException(e.getMessage());
+            }
+        }
+
+        Map<String, GoogleDriveFileStat> statAll(Collection<String> paths, boolean checksums) {
+            statted++;
+            Map<String, GoogleDriveFileStat> stats = new LinkedHashMap<String, GoogleDriveFileStat>();
+            for (String path : paths) {
+                String content = files.get(path);
+                if (content != null) {
+                    stats.put(path, new GoogleDriveFileStat(path, null, content.length(), null, new Date()));
+                }
+            }
+
+            return stats;
+        }
+
+        String getRootProperty(String name) {
+            return rootProperties.get(name);
+        }
+
+        void setRootProperty(String name, String value) {
+            rootProperties.put(name, value);
+        }
+
+        List<String> listFiles() {
+            synchronized (files) {
+                return new ArrayList<String>(files.keySet());
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.universal.storage;
 import junit.framework.TestCase;
 import java.io.File;
 import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Map;
 import com.universal.error.UniversalStorageException;
 import com.universal.error.UniversalIOException;
 import org.apache.commons.io.FileUtils;
@@ -94,6 +96,30 @@ public class TestUniversalGoogleDriveStorage extends TestCase {
         }
     }
 
+    /**
+     * This test will retrieve the metadata of files without downloading them using a GoogleDrive provider.
+     */
+    public void testStatFileAsGoogleDriveProvider() {
+        String fileName = System.nanoTime() + ".txt";
+        setUpTest(fileName, "stat/innerfolder");
+
+        try {
+            UniversalGoogleDriveStorage storage = (UniversalGoogleDriveStorage) us;
+            assertTrue(storage.exists("stat/innerfolder/" + fileName));
+            assertFalse(storage.exists("stat/innerfolder/Target.txttxt"));
+
+            GoogleDriveFileStat stat = storage.stat(fileName);
+            assertNotNull(stat);
+            assertEquals("Hello World!".length(), stat.getSize());
+
+            Map<String, GoogleDriveFileStat> stats = storage.statAll(Arrays.asList(fileName, 
+                        "stat/innerfolder/" + fileName, "stat/innerfolder/Target.txttxt"));
+            assertEquals(2, stats.size());
+        } catch (UniversalStorageException e) {
+            fail(e.getMessage());
+        }
+    }
+
     /**
      * This test will execute the remove file process using a GoogleDrive provider.
      */
@@ -0,0 +1,200 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class tests the crash recovery of the write-behind journal.  These tests don't need Google Drive.
+ */
+public class TestUploadJournal extends TestCase {
+    private File spool;
+    private File file;
+
+    protected void setUp() throws Exception {
+        File folder = new File(System.getProperty("java.io.tmpdir"), "universal-storage-journal-" + System.nanoTime());
+        spool = new File(folder, "spool");
+        file = new File(folder, "file.txt");
+
+        FileUtils.forceMkdir(folder);
+        write(file, "Hello World!");
+    }
+
+    protected void tearDown() {
+        FileUtils.deleteQuietly(spool.getParentFile());
+    }
+
+    private static void write(File target, String content) throws IOException {
+        FileWriter fw = new FileWriter(target, true);
+        try {
+            fw.write(content);
+        } finally {
+            fw.close();
+        }
+    }
+
+    /**
+     * This test will replay the pending entries after reopening the journal.
+     */
+    public void testReplayResumesPendingEntries() throws Exception {
+        UploadJournal journal = new UploadJournal(spool);
+        UploadJournal.Entry first = journal.append(file, "myfolder");
+        journal.append(file, "");
+        journal.complete(first);
+
+        UploadJournal reopened = new UploadJournal(spool);
+        List<UploadJournal.Entry> pending = reopened.take(10);
+
+        assertEquals(1, pending.size());
+        assertEquals("file.txt", pending.get(0).getKey());
+        assertNull(reopened.lookup("myfolder/file.txt"));
+        assertEquals("Hello World!", FileUtils.readFileToString(pending.get(0).getContent(), "UTF-8"));
+    }
+
+    /**
+     * This test will ignore a truncated last record and release the spooled file which isn't pending.
+     */
+    public void testTruncatedLastLineAndOrphansAreDropped() throws Exception {
+        UploadJournal journal = new UploadJournal(spool);
+        journal.append(file, "myfolder");
+
+        File orphan = new File(spool, "2-orphan.txt");
+        write(orphan, "orphan");
+        write(new File(spool, "journal.log"), "S\t2\tmyfol");
+
+        UploadJournal reopened = new UploadJournal(spool);
+
+        assertEquals(1, reopened.take(10).size());
+        assertNotNull(reopened.lookup("myfolder/file.txt"));
+        assertFalse(orphan.exists());
+    }
+
+    /**
+     * This test will keep the sequence after the log was compacted, so spooled names are never reused.
+     */
+    public void testSequenceIsKeptAfterCompaction() throws Exception {
+        UploadJournal journal = new UploadJournal(spool);
+        journal.complete(journal.append(file, ""));
+        journal.complete(journal.append(file, ""));
+
+        UploadJournal reopened = new UploadJournal(spool);
+
+        assertEquals(3, reopened.append(file, "").getSeq());
+    }
+
+    /**
+     * This test will compact the log while there are pending entries.
+     */
+    public void testLogIsCompactedUnderLoad() throws Exception {
+        UploadJournal journal = new UploadJournal(spool, 512);
+        journal.append(file, "stuck");
+
+        for (int i = 0; i < 200; i++) {
+            journal.complete(journal.append(file, "folder" + i));
+        }
+
+        assertTrue(journal.size() < 1024);
+
+        UploadJournal reopened = new UploadJournal(spool);
+        assertEquals(1, reopened.take(10).size());
+        assertNotNull(reopened.lookup("stuck/file.txt"));
+    }
+
+    /**
+     * This test will check the pending state of a specific entry, not of its key.
+     */
+    public void testCancelledEntryIsNotPending() throws Exception {
+        UploadJournal journal = new UploadJournal(spool);
+        UploadJournal.Entry cancelled = journal.append(file, "myfolder");
+        journal.cancel("myfolder/file.txt");
+        UploadJournal.Entry current = journal.append(file, "myfolder");
+
+        assertFalse(journal.isPending(cancelled));
+        assertFalse(cancelled.getContent().exists());
+        assertTrue(journal.isPending(current));
+        assertSame(current, journal.lookup("myfolder/file.txt"));
+    }
+
+    /**
+     * This test will move a dead-lettered entry aside and keep it out of the journal.
+     */
+    public void testDeadLetterMovesContentAside() throws Exception {
+        UploadJournal journal = new UploadJournal(spool);
+        UploadJournal.Entry poisoned = journal.append(file, "myfolder");
+
+        File dead = journal.deadLetter(poisoned);
+
+        assertTrue(dead.exists());
+        assertEquals(new File(spool, UploadJournal.DEAD_LETTER_FOLDER), dead.getParentFile());
+        assertFalse(journal.isPending(poisoned));
+
+        UploadJournal reopened = new UploadJournal(spool);
+        assertNull(reopened.lookup("myfolder/file.txt"));
+        assertTrue(dead.exists());
+    }
+
+    /**
+     * This test will keep taking the entries of other paths while a failed entry waits for its retry.
+     */
+    public void testFailedEntryDoesNotBlockOtherPaths() throws Exception {
+        UploadJournal journal = new UploadJournal(spool);
+        UploadJournal.Entry failed = journal.append(file, "failed");
+        UploadJournal.Entry other = journal.append(file, "other");
+
+        journal.retry(failed, 60000);
+
+        List<UploadJournal.Entry> batch = journal.take(10);
+        assertEquals(1, batch.size());
+        assertSame(other, batch.get(0));
+        assertEquals(1, failed.getAttempts());
+        assertTrue(journal.isPending(failed));
+
+        journal.complete(other);
+        journal.retry(failed, 0);
+
+        assertSame(failed, journal.take(10).get(0));
+    }
+
+    /**
+     * This test will release an older entry superseded by a newer one, even while it waits for its retry.
+     */
+    public void testSupersededEntryIsReleased() throws Exception {
+        UploadJournal journal = new UploadJournal(spool);
+        UploadJournal.Entry older = journal.append(file, "myfolder");
+        journal.retry(older, 60000);
+        UploadJournal.Entry newer = journal.append(file, "myfolder");
+
+        List<UploadJournal.Entry> batch = journal.take(10);
+
+        assertEquals(1, batch.size());
+        assertSame(newer, batch.get(0));
+        assertFalse(journal.isPending(older));
+        assertFalse(older.getContent().exists());
+    }
+
+    /**
+     * This test will calculate the md5 checksum once, while the file is journaled or the first time after a restart.
+     */
+    public void testMd5IsCalculatedOnce() throws Exception {
+        String expected = UniversalGoogleDriveStorage.md5(new ByteArrayInputStream("Hello World!".getBytes("UTF-8")));
+
+        UploadJournal journal = new UploadJournal(spool);
+        UploadJournal.Entry entry = journal.append(file, "");
+        assertEquals(file.lastModified(), entry.getContent().lastModified());
+
+        write(entry.getContent(), " Changed");
+        assertEquals(expected, entry.getMd5());
+
+        UploadJournal reopened = new UploadJournal(spool);
+        UploadJournal.Entry replayed = reopened.lookup("file.txt");
+        String changed = replayed.getMd5();
+
+        assertFalse(expected.equals(changed));
+        write(entry.getContent(), " Again");
+        assertEquals(changed, replayed.getMd5());
+    }
+}